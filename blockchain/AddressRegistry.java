@@ -0,0 +1,142 @@
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Gives the RSA public keys stored in UTXO tables a compact id. Keys with the same exponent and
+ * modulus share one {@link Entry}, which also caches the bytes and hash code that
+ * {@code Transaction.Output} would otherwise compute from the key's BigIntegers on every call.
+ * Outputs paying equal keys share one encoding, which is kept as long as an output uses it.
+ *
+ * <p>
+ * Entries are reference counted: a table acquires an entry for each output it stores and releases
+ * it when the output is removed, and an entry whose count drops to zero is dropped and its id
+ * reused. Looking up an entry by id takes no lock.
+ */
+public class AddressRegistry {
+
+    /** An address with its encoding */
+    public static class Entry {
+        /** the id, -1 if the entry is not registered */
+        public final int id;
+        /** the key for the address */
+        public final PublicKey key;
+        /** exponent bytes followed by modulus bytes, as serialized in raw outputs */
+        public final byte[] raw;
+        /** exponent hash * 31 + modulus hash, as used by {@code Output.hashCode()} */
+        public final int hash;
+        // Outputs stored with this entry, guarded by the registry
+        int refs;
+
+        Entry(int id, PublicKey key, byte[] raw, int hash) {
+            this.id = id;
+            this.key = key;
+            this.raw = raw;
+            this.hash = hash;
+        }
+    }
+
+    private static final AddressRegistry shared = new AddressRegistry();
+
+    // Key -> its encoding, held by the outputs using it rather than by the map
+    private static final WeakHashMap<PublicKey, WeakReference<Entry>> encodings =
+            new WeakHashMap<PublicKey, WeakReference<Entry>>();
+
+    // Exponent and modulus bytes -> registered entry
+    private HashMap<ByteArrayWrapper, Entry> byRaw;
+    // Id -> entry, null for free ids; replaced by a larger copy when full
+    private volatile AtomicReferenceArray<Entry> entries;
+    // Ids of released entries, used before new ones
+    private int[] freeIds;
+    private int freeCount;
+    private int nextId;
+
+    public AddressRegistry() {
+        byRaw = new HashMap<ByteArrayWrapper, Entry>();
+        entries = new AtomicReferenceArray<Entry>(16);
+        freeIds = new int[16];
+    }
+
+    /** @return the registry shared by all UTXO tables */
+    public static AddressRegistry getShared() {
+        return shared;
+    }
+
+    /** @return the encoding of {@code key}, shared with keys equal to it and not registered */
+    public static Entry encode(PublicKey key) {
+        synchronized (encodings) {
+            WeakReference<Entry> ref = encodings.get(key);
+            Entry entry = ref == null ? null : ref.get();
+            if (entry == null) {
+                entry = newEntry(key);
+                encodings.put(key, new WeakReference<Entry>(entry));
+            }
+            return entry;
+        }
+    }
+
+    private static Entry newEntry(PublicKey key) {
+        BigInteger exponent = ((RSAPublicKey) key).getPublicExponent();
+        BigInteger modulus = ((RSAPublicKey) key).getModulus();
+        byte[] e = exponent.toByteArray();
+        byte[] m = modulus.toByteArray();
+        byte[] raw = new byte[e.length + m.length];
+        System.arraycopy(e, 0, raw, 0, e.length);
+        System.arraycopy(m, 0, raw, e.length, m.length);
+        return new Entry(-1, key, raw, exponent.hashCode() * 31 + modulus.hashCode());
+    }
+
+    /**
+     * Register one more output with address {@code address}, see {@link #encode(PublicKey)}
+     *
+     * @return the registered entry for the address
+     */
+    public synchronized Entry acquire(Entry address) {
+        ByteArrayWrapper rawKey = ByteArrayWrapper.wrap(address.raw);
+        Entry entry = byRaw.get(rawKey);
+        if (entry == null) {
+            int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+            entry = new Entry(id, address.key, address.raw, address.hash);
+            AtomicReferenceArray<Entry> current = entries;
+            if (id >= current.length()) {
+                AtomicReferenceArray<Entry> grown = new AtomicReferenceArray<Entry>(current.length() * 2);
+                for (int i = 0; i < current.length(); i++)
+                    grown.set(i, current.get(i));
+                grown.set(id, entry);
+                entries = grown;
+            } else {
+                current.set(id, entry);
+            }
+            byRaw.put(rawKey, entry);
+        }
+        entry.refs++;
+        return entry;
+    }
+
+    /** Unregister one output stored with the entry with id {@code id} */
+    public synchronized void release(int id) {
+        Entry entry = entries.get(id);
+        if (entry == null || --entry.refs > 0)
+            return;
+        byRaw.remove(ByteArrayWrapper.wrap(entry.raw));
+        entries.set(id, null);
+        if (freeCount == freeIds.length)
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        freeIds[freeCount++] = id;
+    }
+
+    /** @return the entry with id {@code id}, which must be acquired and not released yet */
+    public Entry get(int id) {
+        return entries.get(id);
+    }
+
+    /** @return the number of registered addresses */
+    public synchronized int size() {
+        return byRaw.size();
+    }
+}
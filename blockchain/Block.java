@@ -1,6 +1,6 @@
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
 
@@ -12,6 +12,10 @@ public class Block {
     private byte[] prevBlockHash;
     private Transaction coinbase;
     private ArrayList<Transaction> txs;
+    /** coinbase and transaction hashes, synced lazily with {@code txs} */
+    private MerkleTree merkleTree;
+    /** true if {@code hash} is the header hash rather than the hash of the raw block */
+    private boolean headerHashed;
 
     /** {@code address} is the address to which the coinbase transaction would go */
     public Block(byte[] prevHash, PublicKey address) {
@@ -42,32 +46,86 @@ public class Block {
 
     public void addTransaction(Transaction tx) {
         txs.add(tx);
+        if (merkleTree != null && tx.getHash() != null && merkleTree.size() == txs.size())
+            merkleTree.add(tx.getHash());
+    }
+
+    /**
+     * @return the Merkle root over the coinbase and transaction hashes. Only transactions added
+     *         or re-finalized since the last call are rehashed, each in O(log n).
+     */
+    public byte[] getMerkleRoot() {
+        if (merkleTree == null || merkleTree.size() > txs.size() + 1) {
+            merkleTree = new MerkleTree();
+            merkleTree.add(coinbase.getHash());
+        }
+        // finalize() replaces the hash array, so a changed tx shows up as a different reference
+        for (int i = 0; i < merkleTree.size() - 1; i++) {
+            byte[] txHash = txs.get(i).getHash();
+            if (merkleTree.getLeaf(i + 1) != txHash)
+                merkleTree.set(i + 1, txHash);
+        }
+        for (int i = merkleTree.size() - 1; i < txs.size(); i++)
+            merkleTree.add(txs.get(i).getHash());
+        return merkleTree.getRoot();
+    }
+
+    /** @return the Merkle proof that the transaction at {@code index} is part of this block */
+    public ArrayList<byte[]> getMerkleProof(int index) {
+        getMerkleRoot();
+        // Leaf 0 is the coinbase
+        return merkleTree.getProof(index + 1);
+    }
+
+    /** @return the hash of the block header: the previous block hash and the Merkle root */
+    public byte[] getHeaderHash() {
+        byte[] merkleRoot = getMerkleRoot();
+        MessageDigest md = CryptoEngines.sha256();
+        if (prevBlockHash != null)
+            md.update(prevBlockHash);
+        md.update(merkleRoot);
+        return md.digest();
+    }
+
+    /** @return true if the block hash was set by {@link #finalizeHeader()} */
+    public boolean isHeaderHashed() {
+        return headerHashed;
     }
 
     public byte[] getRawBlock() {
-        ArrayList<Byte> rawBlock = new ArrayList<Byte>();
+        ByteBuffer rawBlock = ByteBuffer.allocate(getRawBlockSize());
         if (prevBlockHash != null)
-            for (int i = 0; i < prevBlockHash.length; i++)
-                rawBlock.add(prevBlockHash[i]);
-        for (int i = 0; i < txs.size(); i++) {
-            byte[] rawTx = txs.get(i).getRawTx();
-            for (int j = 0; j < rawTx.length; j++) {
-                rawBlock.add(rawTx[j]);
-            }
-        }
-        byte[] raw = new byte[rawBlock.size()];
-        for (int i = 0; i < raw.length; i++)
-            raw[i] = rawBlock.get(i);
-        return raw;
+            rawBlock.put(prevBlockHash);
+        for (int i = 0; i < txs.size(); i++)
+            txs.get(i).writeRawTx(rawBlock);
+        return rawBlock.array();
+    }
+
+    /** @return the length of {@link #getRawBlock()} */
+    public int getRawBlockSize() {
+        int size = prevBlockHash == null ? 0 : prevBlockHash.length;
+        for (int i = 0; i < txs.size(); i++)
+            size += txs.get(i).getRawTxSize();
+        return size;
+    }
+
+    /**
+     * Set the block hash to the header hash. Unlike {@link #finalize()} this only rehashes what
+     * changed since the last call.
+     */
+    public void finalizeHeader() {
+        hash = getHeaderHash();
+        headerHashed = true;
     }
 
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawBlock());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        headerHashed = false;
+        // Hashes the same bytes as getRawBlock() without building the whole block in memory
+        MessageDigest md = CryptoEngines.sha256();
+        if (prevBlockHash != null)
+            md.update(prevBlockHash);
+        for (int i = 0; i < txs.size(); i++)
+            md.update(txs.get(i).getRawTx());
+        hash = md.digest();
     }
 }
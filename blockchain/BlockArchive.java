@@ -0,0 +1,214 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Append-only archive of blocks on disk, so that blocks dropped from the in-memory window of
+ * {@code BlockChain} can still be served. Blocks are written with {@code WireCodec} into segment
+ * files of bounded size and read back through memory mapped buffers. The hash and height indexes
+ * are kept in memory and rebuilt by scanning the segments when the archive is opened.
+ *
+ * <p>
+ * Each record is {@code length(int) height(int) block}, where length counts the height and the
+ * encoded block.
+ */
+public class BlockArchive {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+
+    /** Location of an archived block */
+    private static class Location {
+        final int segment;
+        final int offset;
+        final int length;
+        final int height;
+
+        Location(int segment, int offset, int length, int height) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.height = height;
+        }
+    }
+
+    private File dir;
+    private long segmentSize;
+    private ArrayList<FileChannel> segments;
+    // Read-only mappings of each segment, remapped when the segment has grown
+    private ArrayList<MappedByteBuffer> mappings;
+
+    // Block hash -> location
+    private HashMap<ByteArrayWrapper, Location> index;
+    // Height -> block hashes, in archive order
+    private TreeMap<Integer, ArrayList<ByteArrayWrapper>> heights;
+
+    /** Opens the archive in {@code dir}, creating it if needed */
+    public BlockArchive(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Opens the archive in {@code dir}, starting a new segment file every {@code segmentSize} bytes */
+    public BlockArchive(File dir, long segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        segments = new ArrayList<FileChannel>();
+        mappings = new ArrayList<MappedByteBuffer>();
+        index = new HashMap<ByteArrayWrapper, Location>();
+        heights = new TreeMap<Integer, ArrayList<ByteArrayWrapper>>();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+        for (int i = 0; segmentFile(i).exists(); i++) {
+            openSegment(i);
+            scanSegment(i);
+        }
+    }
+
+    /** Append {@code block} at {@code height}, unless it is archived already */
+    public synchronized void append(Block block, int height) throws IOException {
+        ByteArrayWrapper hash = new ByteArrayWrapper(block.getHash());
+        if (index.containsKey(hash))
+            return;
+        byte[] encoded = WireCodec.encode(block);
+        ByteBuffer record = ByteBuffer.allocate(8 + encoded.length);
+        record.putInt(4 + encoded.length);
+        record.putInt(height);
+        record.put(encoded);
+        record.flip();
+
+        int segment = segments.size() - 1;
+        if (segment < 0 || (segments.get(segment).size() > 0
+                && segments.get(segment).size() + record.remaining() > segmentSize)) {
+            segment = segments.size();
+            openSegment(segment);
+        }
+        FileChannel channel = segments.get(segment);
+        long offset = channel.size();
+        while (record.hasRemaining())
+            channel.write(record, offset + record.position());
+        addToIndex(hash, new Location(segment, (int) offset + 8, encoded.length, height));
+    }
+
+    /** @return true if the block with hash {@code hash} is archived */
+    public synchronized boolean contains(byte[] hash) {
+        return index.containsKey(ByteArrayWrapper.wrap(hash));
+    }
+
+    /** @return the archived block with hash {@code hash}, or null if there is none */
+    public synchronized Block getBlock(byte[] hash) throws IOException {
+        Location loc = index.get(ByteArrayWrapper.wrap(hash));
+        if (loc == null)
+            return null;
+        return read(loc).toBlock();
+    }
+
+    /** @return the height of the archived block with hash {@code hash}, or -1 if there is none */
+    public synchronized int getHeight(byte[] hash) {
+        Location loc = index.get(ByteArrayWrapper.wrap(hash));
+        return loc == null ? -1 : loc.height;
+    }
+
+    /** @return the archived blocks with {@code fromHeight <= height <= toHeight}, lowest first */
+    public synchronized ArrayList<Block> getBlocks(int fromHeight, int toHeight) throws IOException {
+        ArrayList<Block> blocks = new ArrayList<Block>();
+        for (Map.Entry<Integer, ArrayList<ByteArrayWrapper>> e
+                : heights.subMap(fromHeight, true, toHeight, true).entrySet()) {
+            for (ByteArrayWrapper hash : e.getValue())
+                blocks.add(read(index.get(hash)).toBlock());
+        }
+        return blocks;
+    }
+
+    /** @return the number of archived blocks */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /** Force all appended blocks to disk */
+    public synchronized void sync() throws IOException {
+        for (FileChannel channel : segments)
+            channel.force(false);
+    }
+
+    public synchronized void close() throws IOException {
+        for (FileChannel channel : segments)
+            channel.close();
+        segments.clear();
+        mappings.clear();
+    }
+
+    private File segmentFile(int segment) {
+        return new File(dir, String.format("blocks-%05d.dat", segment));
+    }
+
+    private void openSegment(int segment) throws IOException {
+        segments.add(new RandomAccessFile(segmentFile(segment), "rw").getChannel());
+        mappings.add(null);
+    }
+
+    /** @return a mapping of {@code segment} covering at least {@code end} bytes */
+    private MappedByteBuffer map(int segment, long end) throws IOException {
+        MappedByteBuffer mapping = mappings.get(segment);
+        if (mapping == null || mapping.capacity() < end) {
+            FileChannel channel = segments.get(segment);
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mappings.set(segment, mapping);
+        }
+        return mapping;
+    }
+
+    private WireCodec.BlockView read(Location loc) throws IOException {
+        ByteBuffer buf = map(loc.segment, loc.offset + loc.length).duplicate();
+        buf.position(loc.offset);
+        buf.limit(loc.offset + loc.length);
+        return WireCodec.readBlock(buf.slice());
+    }
+
+    /** Index the records of {@code segment}, cutting off a partly written last record */
+    private void scanSegment(int segment) throws IOException {
+        FileChannel channel = segments.get(segment);
+        long size = channel.size();
+        if (size == 0)
+            return;
+        MappedByteBuffer buf = map(segment, size);
+        int offset = 0;
+        while (offset + 8 <= size) {
+            int length = buf.getInt(offset);
+            if (length < 4 || offset + 4 + length > size)
+                break;
+            int height = buf.getInt(offset + 4);
+            ByteBuffer encoded = buf.duplicate();
+            encoded.position(offset + 8);
+            encoded.limit(offset + 4 + length);
+            byte[] hash;
+            try {
+                hash = WireCodec.readBlock(encoded.slice()).getHash();
+            } catch (RuntimeException e) {
+                // Garbage after a crash
+                break;
+            }
+            addToIndex(new ByteArrayWrapper(hash), new Location(segment, offset + 8, length - 4, height));
+            offset += 4 + length;
+        }
+        if (offset < size) {
+            mappings.set(segment, null);
+            channel.truncate(offset);
+        }
+    }
+
+    private void addToIndex(ByteArrayWrapper hash, Location loc) {
+        index.put(hash, loc);
+        ArrayList<ByteArrayWrapper> list = heights.get(loc.height);
+        if (list == null) {
+            list = new ArrayList<ByteArrayWrapper>();
+            heights.put(loc.height, list);
+        }
+        list.add(hash);
+    }
+}
@@ -1,12 +1,21 @@
 import java.util.HashMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.io.File;
+import java.io.IOException;
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.Signature;
 import java.security.SignatureException;
 // Block Chain should maintain only limited block nodes to satisfy the functions
 // You should not have all the blocks added to the block chain in memory 
@@ -14,13 +23,25 @@ import java.security.SignatureException;
 
 public class BlockChain {
 
+    /** How the UTXO state of the retained blocks is kept */
+    public enum StateMode {
+        // Every block keeps its own UTXOPool layered on its parent's
+        OVERLAY,
+        // Only the max height block has a UTXOPool, other blocks are reached through undo records
+        SINGLE_TIP
+    }
+
     public class BlockWrapper {
         
         public ByteArrayWrapper hash;
         public Block block;
         public int height;
+        // Shares all unchanged entries with the parent block's pool, null in SINGLE_TIP mode
         public UTXOPool utxoPool;
         public int serialID;
+        // Null once the parent has been removed as outdated
+        public BlockWrapper parent;
+        public BlockUndo undo;
         public BlockWrapper(int serialID, ByteArrayWrapper hash, Block block, int height, UTXOPool utxoPool) {
             this.serialID = serialID;
             this.hash = hash;
@@ -32,6 +53,11 @@ public class BlockChain {
 
     public static final int CUT_OFF_AGE = 10;
     public TransactionPool transactionPool;
+    public final StateMode stateMode;
+
+    // SINGLE_TIP mode: the UTXO set of stateBlock, which is kept at the max height block
+    public UTXOPool utxoState;
+    public BlockWrapper stateBlock;
     
     // Block hash -> Block wrapper
     public HashMap<ByteArrayWrapper, BlockWrapper> blockchain;
@@ -40,52 +66,107 @@ public class BlockChain {
     public HashMap<Integer, ArrayList<ByteArrayWrapper>> heights;
     public int blockCount;
     public int maxHeight;
+
+    // The oldest block at max height
+    public BlockWrapper bestTip;
+
+    // Blocks without children, highest first and oldest first among equal heights
+    public TreeSet<BlockWrapper> forkTips;
+
+    // Verifies the signatures of a block in parallel, null to verify them one by one
+    public ExecutorService verifyExecutor;
+
+    // Keeps every accepted block after it falls out of the window, may be null
+    public BlockArchive archive;
+
+    // Written every snapshotInterval accepted blocks when not null
+    public File snapshotFile;
+    public int snapshotInterval;
+
+    // Blocks waiting for their parent, null to drop them as before
+    public OrphanPool orphanPool;
+    // Parents whose orphans still have to be added while a cascade is running, null otherwise
+    private ArrayDeque<ByteArrayWrapper> orphanParents;
     
     /**
      * create an empty block chain with just a genesis block. Assume {@code genesisBlock} is a valid
      * block
      */
     public BlockChain(Block genesisBlock) {
-        // IMPLEMENT THIS
+        this(genesisBlock, StateMode.OVERLAY);
+    }
+
+    /** create a block chain with just a genesis block that keeps its UTXO state in {@code stateMode} */
+    public BlockChain(Block genesisBlock, StateMode stateMode) {
+        this(genesisBlock, stateMode, new UTXOPool());
+    }
+
+    /** create a block chain without any blocks, which {@code BlockChainSnapshot} fills in */
+    BlockChain(StateMode stateMode) {
         // Init
+        this.stateMode = stateMode;
         blockchain = new HashMap<ByteArrayWrapper, BlockWrapper>();
         heights = new HashMap<Integer, ArrayList<ByteArrayWrapper>>();
+        forkTips = new TreeSet<BlockWrapper>(new Comparator<BlockWrapper>() {
+            public int compare(BlockWrapper b1, BlockWrapper b2) {
+                if (b1.height != b2.height) {
+                    return b1.height > b2.height ? -1 : 1;
+                }
+                return Integer.compare(b1.serialID, b2.serialID);
+            }
+        });
         transactionPool = new TransactionPool();
+    }
+
+    /**
+     * create a block chain with just a genesis block whose UTXO state starts in the empty pool
+     * {@code utxoPool}, e.g. a {@code DiskUTXOPool} in SINGLE_TIP mode. A {@code DiskUTXOPool}
+     * cannot be used in OVERLAY mode, where it would never be flushed and the overlays on top of it
+     * are eventually flattened onto the heap.
+     */
+    public BlockChain(Block genesisBlock, StateMode stateMode, UTXOPool utxoPool) {
+        // IMPLEMENT THIS
+        this(stateMode);
+        if (stateMode == StateMode.OVERLAY && utxoPool instanceof DiskUTXOPool)
+            throw new IllegalArgumentException("a DiskUTXOPool needs SINGLE_TIP mode");
         // Create BlockWrapper
         ByteArrayWrapper hash = new ByteArrayWrapper(genesisBlock.getHash());
-        UTXOPool utxoPool = new UTXOPool();
         Transaction coinbaseTx = genesisBlock.getCoinbase();
         // For each new block, the coinbase tx's output has already been 
         // added to the transaction output list in Transaction.java Line 136
         // Add all output of the genesis block to UXTO Pool
+        BlockUndo undo = new BlockUndo();
         ArrayList<Transaction.Output> outputs = coinbaseTx.getOutputs();
         for (int i = 0; i < outputs.size(); i++) {
             UTXO utxo = new UTXO(coinbaseTx.getHash(), i);
-            utxoPool.addUTXO(utxo, outputs.get(i));
+            createUTXO(utxo, outputs.get(i), utxoPool, undo);
         }
         BlockWrapper blockWrapper = new BlockWrapper(blockCount, hash, genesisBlock, 1, utxoPool);
+        blockWrapper.undo = undo;
+        if (stateMode == StateMode.SINGLE_TIP) {
+            blockWrapper.utxoPool = null;
+            utxoState = utxoPool;
+            stateBlock = blockWrapper;
+            utxoState.flush();
+        }
         blockchain.put(hash, blockWrapper);
         // Update Height
         addToHeightMap(1, hash);
         maxHeight = 1;
+        bestTip = blockWrapper;
+        forkTips.add(blockWrapper);
         blockCount++;
     }
 
     /** Get the maximum height block wrapper */
     public BlockWrapper getMaxHeightBlockWrapper() {
-        // Get the list of blocks with max heights
-        ArrayList<ByteArrayWrapper> allBlockHash = heights.get(maxHeight);
-        BlockWrapper finalBlockWrapper = blockchain.get(allBlockHash.get(0));
-        int oldest = finalBlockWrapper.serialID;
-        for (int i = 1; i < allBlockHash.size(); i++) {
-            BlockWrapper tmpBlockWrapper = blockchain.get(allBlockHash.get(i));
-            if (tmpBlockWrapper.serialID < oldest) {
-                finalBlockWrapper = tmpBlockWrapper;
-                oldest = tmpBlockWrapper.serialID;
-            }
-            // System.out.println(oldest);
-        }
-        return finalBlockWrapper;
+        // Kept up to date by addBlock
+        return bestTip;
+    }
+
+    /** Get the tips of all retained forks, the max height block first. The set cannot be modified. */
+    public SortedSet<BlockWrapper> getForkTips() {
+        return Collections.unmodifiableSortedSet(forkTips);
     }
 
     /** Get the maximum height block */
@@ -94,34 +175,133 @@ public class BlockChain {
         return getMaxHeightBlockWrapper().block;
     }
 
-    /** Get the UTXOPool for mining a new block on top of max height block */
+    /**
+     * Get the UTXOPool for mining a new block on top of max height block. In SINGLE_TIP mode it
+     * reads through to the UTXO state, so it is only valid until the next call to addBlock.
+     */
     public UTXOPool getMaxHeightUTXOPool() {
         // IMPLEMENT THIS
+        if (stateMode == StateMode.SINGLE_TIP) {
+            // Copying the state would load a disk-backed state onto the heap, the layer keeps the
+            // caller's changes away from it instead
+            return UTXOPool.overlay(utxoState);
+        }
+        // Child blocks share the tip pool, so hand out a layer the caller may modify
+        return UTXOPool.overlay(getMaxHeightBlockWrapper().utxoPool);
+    }
+
+    /**
+     * Get the UTXO set of the max height block without copying it. It must not be modified and is
+     * only valid until the next call to addBlock.
+     */
+    public UTXOPool getMaxHeightUTXOState() {
+        if (stateMode == StateMode.SINGLE_TIP) {
+            return utxoState;
+        }
         return getMaxHeightBlockWrapper().utxoPool;
     }
 
+    /**
+     * Verify block signatures on {@code executor}, e.g. {@code ForkJoinPool.commonPool()}. UTXO
+     * updates are still applied on the calling thread. Pass null to verify sequentially.
+     */
+    public void setVerifyExecutor(ExecutorService executor) {
+        verifyExecutor = executor;
+    }
+
+    /** Write every accepted block to {@code archive}, starting with the blocks held now */
+    public void setArchive(BlockArchive archive) {
+        this.archive = archive;
+        for (BlockWrapper blockWrapper : blockchain.values())
+            archiveBlock(blockWrapper);
+    }
+
+    /** Archive failures are reported but do not reject the block */
+    public void archiveBlock(BlockWrapper blockWrapper) {
+        if (archive == null)
+            return;
+        try {
+            archive.append(blockWrapper.block, blockWrapper.height);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Write a {@code BlockChainSnapshot} to {@code file} after every {@code interval} accepted blocks */
+    public void setSnapshot(File file, int interval) {
+        snapshotFile = file;
+        snapshotInterval = interval;
+    }
+
+    /** Snapshot failures are reported but do not reject the block */
+    public void snapshotIfDue() {
+        if (snapshotFile == null || snapshotInterval <= 0 || blockCount % snapshotInterval != 0)
+            return;
+        try {
+            BlockChainSnapshot.write(this, snapshotFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Keep blocks whose parent is unknown in {@code orphanPool}, null to drop them, the default */
+    public void setOrphanPool(OrphanPool orphanPool) {
+        this.orphanPool = orphanPool;
+    }
+
+    /** Get a block by hash from the retained window or else from the archive, null if unknown */
+    public Block getBlock(byte[] hash) {
+        BlockWrapper blockWrapper = blockchain.get(ByteArrayWrapper.wrap(hash));
+        if (blockWrapper != null)
+            return blockWrapper.block;
+        if (archive == null)
+            return null;
+        try {
+            return archive.getBlock(hash);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     /** Get the transaction pool to mine a new block */
     public TransactionPool getTransactionPool() {
         // IMPLEMENT THIS
         return transactionPool;
     }
 
+    /**
+     * Get the transaction pool itself, never a copy, for callers that follow its changes such as
+     * {@code BlockTemplateBuilder}. Read it only while holding {@link #lockTransactionPool()}.
+     */
+    public TransactionPool getLiveTransactionPool() {
+        return transactionPool;
+    }
+
+    /** Keep the transaction pool from changing until {@link #unlockTransactionPool()} */
+    public void lockTransactionPool() {
+    }
+
+    public void unlockTransactionPool() {
+    }
+
     /** Crypto class is not available for online grader, so we migrate its method here */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+        // Signatures checked before, e.g. for the transaction pool, are not checked again
+        SignatureCache cache = SignatureCache.getShared();
+        ByteArrayWrapper key = SignatureCache.key(pubKey, message, signature);
+        if (key != null && cache.contains(key)) {
+            return true;
         }
         try {
-            sig.initVerify(pubKey);
+            // Reuses this thread's verifier for pubKey
+            boolean verified = CryptoEngines.verify(pubKey, message, signature);
+            if (verified && key != null) {
+                cache.add(key);
+            }
+            return verified;
         } catch (InvalidKeyException e) {
             e.printStackTrace();
-        }
-        try {
-            sig.update(message);
-            return sig.verify(signature);
         } catch (SignatureException e) {
             e.printStackTrace();
         }
@@ -142,6 +322,11 @@ public class BlockChain {
 
     /** Check the validity of a transaction */
     public boolean isValidTx(Transaction tx, UTXOPool utxoPool) {
+        return isValidTx(tx, utxoPool, true);
+    }
+
+    /** Check the validity of a transaction, skip signatures that have been verified already */
+    public boolean isValidTx(Transaction tx, UTXOPool utxoPool, boolean checkSignatures) {
         // IMPLEMENT THIS
         // printUTXOPool(utxoPool);
         HashSet<UTXO> allUTXO = new HashSet<UTXO>();
@@ -166,7 +351,8 @@ public class BlockChain {
             }
             // Get the previous output
             Transaction.Output prevOutput = utxoPool.getTxOutput(utxo);
-            if (verifySignature(prevOutput.address, tx.getRawDataToSign(i), nowInput.signature) == false) {
+            if (checkSignatures
+                    && verifySignature(prevOutput.address, tx.getRawDataToSign(i), nowInput.signature) == false) {
                 // System.out.println("Tx verification failed");
                 return false;
             }
@@ -189,6 +375,11 @@ public class BlockChain {
 
     /** Handle valid Tx for a block */
     public void handleValidTx(Transaction tx, UTXOPool newUTXOPool) {
+        handleValidTx(tx, newUTXOPool, null);
+    }
+
+    /** Handle valid Tx for a block and record the changes in {@code undo} if it is not null */
+    public void handleValidTx(Transaction tx, UTXOPool newUTXOPool, BlockUndo undo) {
         ArrayList<Transaction.Input> inputs = tx.getInputs();
         ArrayList<Transaction.Output> outputs = tx.getOutputs();
         // Remove old UTXO
@@ -196,38 +387,122 @@ public class BlockChain {
             Transaction.Input nowInput = inputs.get(i);
             UTXO utxo = new UTXO(nowInput.prevTxHash, nowInput.outputIndex);
             // Remove original utxo
+            if (undo != null)
+                undo.spend(utxo, newUTXOPool.getTxOutput(utxo));
             newUTXOPool.removeUTXO(utxo);
         }
         // Add new UTXO
         for (int i = 0; i < outputs.size(); i++) {
             UTXO utxo = new UTXO(tx.getHash(), i);
-            newUTXOPool.addUTXO(utxo, outputs.get(i));
+            createUTXO(utxo, outputs.get(i), newUTXOPool, undo);
+        }
+    }
+
+    /** Add a new UTXO to the pool and record it in {@code undo} if it is not null */
+    public void createUTXO(UTXO utxo, Transaction.Output txOut, UTXOPool utxoPool, BlockUndo undo) {
+        if (undo != null) {
+            // Identical coinbase txs share a hash, so remember what gets overwritten
+            Transaction.Output replaced = utxoPool.getTxOutput(utxo);
+            if (replaced != null)
+                undo.spend(utxo, replaced);
+            undo.create(utxo, txOut);
         }
+        utxoPool.addUTXO(utxo, txOut);
     }
 
     /** Check transactions */
     public boolean checkTxs(ArrayList<Transaction> possibleTxs, UTXOPool newUTXOPool) {
-        ArrayList<Transaction> validTx = new ArrayList<Transaction>();
-        // Keep track of unresolved txs
-        HashSet<Transaction> txs = new HashSet<Transaction>(possibleTxs);
-        int tmpSize = txs.size();
-        int newSize = tmpSize;
-        // Check if all transactions can be executed
-        // Do it for multiple rounds in case some transactions
-        // become valid given that the other transaction is valid
-        do {
-            tmpSize = newSize;
-            // Iterate unresolved txs
-            for (Iterator<Transaction> i = txs.iterator(); i.hasNext();) {
-                Transaction tx = i.next();
-                if (isValidTx(tx, newUTXOPool)) {
-                    validTx.add(tx);
-                    handleValidTx(tx, newUTXOPool);
-                    i.remove();
+        return checkTxs(possibleTxs, newUTXOPool, null);
+    }
+
+    /** Verifies the signature of one input */
+    private static class SignatureCheck implements Callable<Boolean> {
+        private PublicKey pubKey;
+        private Transaction tx;
+        private int index;
+
+        SignatureCheck(PublicKey pubKey, Transaction tx, int index) {
+            this.pubKey = pubKey;
+            this.tx = tx;
+            this.index = index;
+        }
+
+        public Boolean call() {
+            return verifySignature(pubKey, tx.getRawDataToSign(index), tx.getInput(index).signature);
+        }
+    }
+
+    /**
+     * Verify the signatures of all inputs of {@code txs} on verifyExecutor. Inputs may spend
+     * outputs from {@code utxoPool} or from other transactions in {@code txs}; inputs spending
+     * unknown outputs are skipped since they fail the UTXO checks anyway.
+     * 
+     * @return false if any signature is invalid
+     */
+    public boolean verifySignatures(ArrayList<Transaction> txs, UTXOPool utxoPool) {
+        HashMap<ByteArrayWrapper, Transaction> blockTxs = new HashMap<ByteArrayWrapper, Transaction>();
+        for (int i = 0; i < txs.size(); i++) {
+            blockTxs.put(ByteArrayWrapper.wrap(txs.get(i).getHash()), txs.get(i));
+        }
+        ArrayList<SignatureCheck> checks = new ArrayList<SignatureCheck>();
+        for (int i = 0; i < txs.size(); i++) {
+            Transaction tx = txs.get(i);
+            for (int j = 0; j < tx.numInputs(); j++) {
+                Transaction.Input in = tx.getInput(j);
+                Transaction.Output prevOutput = utxoPool.getTxOutput(new UTXO(in.prevTxHash, in.outputIndex));
+                if (prevOutput == null && in.outputIndex >= 0) {
+                    // Spends an output created in the same block
+                    Transaction prevTx = blockTxs.get(ByteArrayWrapper.wrap(in.prevTxHash));
+                    if (prevTx != null)
+                        prevOutput = prevTx.getOutput(in.outputIndex);
                 }
+                if (prevOutput != null)
+                    checks.add(new SignatureCheck(prevOutput.address, tx, j));
             }
-            newSize = txs.size();
-        } while (tmpSize != newSize);
+        }
+        try {
+            for (Future<Boolean> result : verifyExecutor.invokeAll(checks)) {
+                if (result.get() == false)
+                    return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /** Check transactions and record the UTXO changes of the valid ones in {@code undo} */
+    public boolean checkTxs(ArrayList<Transaction> possibleTxs, UTXOPool newUTXOPool, BlockUndo undo) {
+        return checkTxs(possibleTxs, newUTXOPool, undo, verifyExecutor != null);
+    }
+
+    /** Check transactions, verifying their signatures on verifyExecutor if {@code parallel} */
+    private boolean checkTxs(ArrayList<Transaction> possibleTxs, UTXOPool newUTXOPool, BlockUndo undo,
+            boolean parallel) {
+        // In parallel mode every signature is verified up front
+        boolean checkSignatures = true;
+        if (parallel) {
+            if (verifySignatures(possibleTxs, newUTXOPool) == false) {
+                return false;
+            }
+            checkSignatures = false;
+        }
+        ArrayList<Transaction> validTx = new ArrayList<Transaction>();
+        // Parents come before the txs spending them, so a single pass is enough
+        ArrayList<Transaction> txs = TxOrder.topological(possibleTxs);
+        for (int i = 0; i < txs.size(); i++) {
+            Transaction tx = txs.get(i);
+            if (isValidTx(tx, newUTXOPool, checkSignatures) == false) {
+                // Every tx of a block has to be valid
+                return false;
+            }
+            validTx.add(tx);
+            handleValidTx(tx, newUTXOPool, undo);
+        }
         // System.out.printf("%d %d\n", possibleTxs.size(), validTx.size());
         return possibleTxs.size() == validTx.size();
     }
@@ -238,10 +513,47 @@ public class BlockChain {
             ArrayList<ByteArrayWrapper> list = heights.get(outHeight);
             for (int i = 0; i < list.size(); i++) {
                 ByteArrayWrapper hash = list.get(i);
-                blockchain.remove(hash);
+                forkTips.remove(blockchain.remove(hash));
             }
             heights.remove(outHeight);
+            // Let the removed blocks be collected
+            ArrayList<ByteArrayWrapper> children = heights.get(outHeight + 1);
+            if (children != null) {
+                for (int i = 0; i < children.size(); i++)
+                    blockchain.get(children.get(i)).parent = null;
+            }
+        }
+    }
+
+    /**
+     * SINGLE_TIP mode: move utxoState to {@code target} by disconnecting blocks back to the
+     * common ancestor and connecting the blocks of the target branch.
+     *
+     * @return false if the common ancestor has already been removed as outdated
+     */
+    public boolean moveStateTo(BlockWrapper target) {
+        ArrayList<BlockWrapper> toDisconnect = new ArrayList<BlockWrapper>();
+        ArrayList<BlockWrapper> toConnect = new ArrayList<BlockWrapper>();
+        BlockWrapper from = stateBlock;
+        BlockWrapper to = target;
+        while (from != to) {
+            if (from == null || to == null) {
+                return false;
+            }
+            if (from.height >= to.height) {
+                toDisconnect.add(from);
+                from = from.parent;
+            } else {
+                toConnect.add(to);
+                to = to.parent;
+            }
         }
+        for (int i = 0; i < toDisconnect.size(); i++)
+            toDisconnect.get(i).undo.disconnect(utxoState);
+        for (int i = toConnect.size() - 1; i >= 0; i--)
+            toConnect.get(i).undo.connect(utxoState);
+        stateBlock = target;
+        return true;
     }
 
     /**
@@ -263,9 +575,11 @@ public class BlockChain {
             return false;
         }
         // Check if the prevBlock is outdated
-        ByteArrayWrapper prevBlockHash = new ByteArrayWrapper(block.getPrevBlockHash());
+        ByteArrayWrapper prevBlockHash = ByteArrayWrapper.wrap(block.getPrevBlockHash());
         if (blockchain.containsKey(prevBlockHash) == false) {
-            // Previous block has been removed because it is outdated
+            // Previous block has been removed because it is outdated or has not arrived yet
+            if (orphanPool != null && isArchived(block.getPrevBlockHash()) == false)
+                orphanPool.addOrphan(block);
             return false;
         }
         // Check if block with the same hash exists
@@ -276,45 +590,313 @@ public class BlockChain {
             // And getMaxHeight will not correctly find the oldest block
             return true;
         }
-        // Get previous utxoPool
-        UTXOPool newUTXOPool = new UTXOPool(blockchain.get(prevBlockHash).utxoPool);
+        BlockWrapper prevBlockWrapper = blockchain.get(prevBlockHash);
+        UTXOPool prevUTXOPool = prevBlockWrapper.utxoPool;
+        if (stateMode == StateMode.SINGLE_TIP) {
+            // Bring the single UTXO state to the parent first
+            if (moveStateTo(prevBlockWrapper) == false) {
+                return false;
+            }
+            prevUTXOPool = utxoState;
+        }
+        BlockUndo undo = new BlockUndo();
+        UTXOPool newUTXOPool = validateBlock(block, prevUTXOPool, undo);
+        if (newUTXOPool == null) {
+            if (stateMode == StateMode.SINGLE_TIP) {
+                moveStateTo(getMaxHeightBlockWrapper());
+            }
+            return false;
+        }
+        connectBlock(block, hash, prevBlockWrapper, newUTXOPool, undo);
+        return true;
+    }
+
+    /**
+     * Check the transactions of {@code block} on top of {@code prevUTXOPool} and record the UTXO
+     * changes in {@code undo}. {@code prevUTXOPool} is only read, so blocks on different branches
+     * can be validated at the same time in OVERLAY mode.
+     * 
+     * @return the UTXO pool after {@code block}, or null if the block is invalid
+     */
+    public UTXOPool validateBlock(Block block, UTXOPool prevUTXOPool, BlockUndo undo) {
+        return validateBlock(block, prevUTXOPool, undo, verifyExecutor != null);
+    }
+
+    /** Validate {@code block}, verifying its signatures on verifyExecutor if {@code parallel} */
+    private UTXOPool validateBlock(Block block, UTXOPool prevUTXOPool, BlockUndo undo, boolean parallel) {
+        // Layer the new utxoPool on the previous one instead of copying it
+        UTXOPool newUTXOPool = UTXOPool.overlay(prevUTXOPool);
         
         // Handle Txs: pass UTXO pools as references
-        if (checkTxs(block.getTransactions(), newUTXOPool) == false) {
-            return false;
+        if (checkTxs(block.getTransactions(), newUTXOPool, undo, parallel) == false) {
+            return null;
         }
 
         // Add coinbase transaction to the UTXO pool so it can be used
         // by following blocks
         Transaction coinbaseTx = block.getCoinbase();
-        newUTXOPool.addUTXO(new UTXO(coinbaseTx.getHash(), 0), coinbaseTx.getOutput(0));
+        createUTXO(new UTXO(coinbaseTx.getHash(), 0), coinbaseTx.getOutput(0), newUTXOPool, undo);
+        return newUTXOPool;
+    }
 
+    /** Insert a {@code block} validated on top of {@code prevBlockWrapper} and move the tip */
+    private void connectBlock(Block block, ByteArrayWrapper hash, BlockWrapper prevBlockWrapper,
+            UTXOPool newUTXOPool, BlockUndo undo) {
         // Add the block
         BlockWrapper newBlockWrapper = new BlockWrapper(
-            blockCount, hash, block, blockchain.get(prevBlockHash).height + 1, newUTXOPool);
+            blockCount, hash, block, prevBlockWrapper.height + 1, newUTXOPool);
+        newBlockWrapper.parent = prevBlockWrapper;
+        newBlockWrapper.undo = undo;
+        if (stateMode == StateMode.SINGLE_TIP) {
+            // Only keep the undo record, the overlay is dropped
+            newBlockWrapper.utxoPool = null;
+        }
         blockchain.put(hash, newBlockWrapper);
         addToHeightMap(newBlockWrapper.height, hash);
+        forkTips.remove(prevBlockWrapper);
+        forkTips.add(newBlockWrapper);
+        archiveBlock(newBlockWrapper);
         // System.out.printf("Add block successful: id %d, height %d\n", newBlockWrapper.serialID, newBlockWrapper.height);
         // System.out.printf("Prev block height %d, id %d\n", blockchain.get(prevBlockHash).height, blockchain.get(prevBlockHash).serialID);
         // Remove txs from the transaction pool
-        for (int i = 0; i < block.getTransactions().size(); i++) {
-            transactionPool.removeTransaction(block.getTransactions().get(i).getHash());
-        }
+        updateTransactionPool(block);
 
         // Update count and max height
         blockCount++;
         if (newBlockWrapper.height > maxHeight) {
             maxHeight = newBlockWrapper.height;
+            // Later blocks at the same height never replace the tip
+            bestTip = newBlockWrapper;
             // Remove old block
             removeOutdatedBlocks(maxHeight-CUT_OFF_AGE-1);
         }
-        return true;
+        if (stateMode == StateMode.SINGLE_TIP) {
+            // Follow the max height block, which may be on another fork now
+            moveStateTo(getMaxHeightBlockWrapper());
+            // Write the state of the new tip out once per block
+            utxoState.flush();
+        }
+        snapshotIfDue();
+        connectOrphans(hash);
+    }
+
+    /** Validates a block of {@link #addBlocks(List)} on top of its parent */
+    private static class BlockValidation implements Callable<Boolean> {
+        private BlockChain blockChain;
+        private Block block;
+        private BlockWrapper parent;
+        private BlockUndo undo;
+        // The UTXO pool after the block, null if it is invalid
+        private UTXOPool utxoPool;
+
+        BlockValidation(BlockChain blockChain, Block block, BlockWrapper parent) {
+            this.blockChain = blockChain;
+            this.block = block;
+            this.parent = parent;
+            this.undo = new BlockUndo();
+        }
+
+        public Boolean call() {
+            // Already running on verifyExecutor, so the signatures are verified on this thread
+            utxoPool = blockChain.validateBlock(block, parent.utxoPool, undo, false);
+            return utxoPool != null;
+        }
+    }
+
+    /**
+     * Add {@code blocks}, e.g. competing blocks of a fork, with the same results as adding them one
+     * by one in list order. In OVERLAY mode with a verifyExecutor, the blocks whose parents are in
+     * the chain are validated in parallel on it, each on top of its parent's UTXO pool. They are
+     * still inserted one at a time in list order; a block whose parent is inserted meanwhile stops
+     * the insertion until it has been validated in the next round.
+     * 
+     * @return for each block, true if it has been added
+     */
+    public boolean[] addBlocks(List<Block> blocks) {
+        boolean[] added = new boolean[blocks.size()];
+        if (stateMode == StateMode.SINGLE_TIP || verifyExecutor == null) {
+            // There is only one UTXO state to validate against, or nothing to validate on
+            for (int i = 0; i < blocks.size(); i++)
+                added[i] = addBlock(blocks.get(i));
+            return added;
+        }
+        // Validations done ahead of the block's turn, by list index
+        HashMap<Integer, BlockValidation> validated = new HashMap<Integer, BlockValidation>();
+        int next = 0;
+        while (next < blocks.size()) {
+            validateAhead(blocks, next, validated);
+            int roundStart = next;
+            while (next < blocks.size()) {
+                Block block = blocks.get(next);
+                BlockValidation validation = validated.remove(next);
+                if (validation == null && next > roundStart && getParent(block) != null
+                        && blockchain.containsKey(ByteArrayWrapper.wrap(block.getHash())) == false) {
+                    // Its parent has been inserted in this round, validate it in the next one
+                    break;
+                }
+                if (validation != null && blockchain.get(validation.parent.hash) == validation.parent
+                        && blockchain.containsKey(ByteArrayWrapper.wrap(block.getHash())) == false) {
+                    if (validation.utxoPool != null)
+                        connectBlock(block, new ByteArrayWrapper(block.getHash()), validation.parent,
+                                validation.utxoPool, validation.undo);
+                    added[next] = validation.utxoPool != null;
+                } else {
+                    // Rejected, orphaned, already known or its parent has been pruned, as addBlock decides
+                    added[next] = addBlock(block);
+                }
+                next++;
+            }
+        }
+        return added;
+    }
+
+    /** @return the wrapper of the parent of {@code block} in the window, null if there is none */
+    private BlockWrapper getParent(Block block) {
+        if (block.getPrevBlockHash() == null || block.getHash() == null)
+            return null;
+        return blockchain.get(ByteArrayWrapper.wrap(block.getPrevBlockHash()));
+    }
+
+    /** Validate the blocks from {@code from} on whose parents are in the chain, in parallel */
+    private void validateAhead(List<Block> blocks, int from, HashMap<Integer, BlockValidation> validated) {
+        ArrayList<Integer> indexes = new ArrayList<Integer>();
+        ArrayList<BlockValidation> validations = new ArrayList<BlockValidation>();
+        for (int i = from; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            BlockWrapper parent = getParent(block);
+            if (validated.containsKey(i) || parent == null
+                    || blockchain.containsKey(ByteArrayWrapper.wrap(block.getHash())))
+                continue;
+            indexes.add(i);
+            validations.add(new BlockValidation(this, block, parent));
+        }
+        if (validations.size() == 1) {
+            // A single block verifies its signatures in parallel instead
+            BlockValidation validation = validations.get(0);
+            validation.utxoPool = validateBlock(validation.block, validation.parent.utxoPool, validation.undo);
+            validated.put(indexes.get(0), validation);
+            return;
+        }
+        try {
+            List<Future<Boolean>> results = verifyExecutor.invokeAll(validations);
+            for (int i = 0; i < results.size(); i++) {
+                results.get(i).get();
+                validated.put(indexes.get(i), validations.get(i));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** @return true if the block with hash {@code hash} has been archived, so it is outdated */
+    private boolean isArchived(byte[] hash) {
+        return archive != null && archive.contains(hash);
+    }
+
+    /** Add the orphans waiting for the block with hash {@code hash}, then the orphans waiting for those */
+    private void connectOrphans(ByteArrayWrapper hash) {
+        if (orphanPool == null || orphanPool.size() == 0)
+            return;
+        if (orphanParents != null) {
+            // Called from a block added by the running cascade, which continues with it
+            orphanParents.add(hash);
+            return;
+        }
+        orphanParents = new ArrayDeque<ByteArrayWrapper>();
+        orphanParents.add(hash);
+        try {
+            while (!orphanParents.isEmpty()) {
+                for (Block child : orphanPool.removeChildren(orphanParents.poll()))
+                    addBlock(child);
+            }
+        } finally {
+            orphanParents = null;
+        }
+    }
+
+    /** Remove the transactions of a newly added {@code block} and their double spends from the pool */
+    public void updateTransactionPool(Block block) {
+        for (int i = 0; i < block.getTransactions().size(); i++) {
+            transactionPool.removeTransaction(block.getTransactions().get(i).getHash());
+            // Pooled double spends of the block's inputs can never be mined after it
+            transactionPool.removeConflicts(block.getTransactions().get(i));
+        }
     }
 
-    /** Add a transaction to the transaction pool */
-    public void addTransaction(Transaction tx) {
+    /**
+     * Add a transaction to the transaction pool if it is valid, see {@link #isValidPoolTx(Transaction)}.
+     * An invalid transaction never replaces or evicts pooled transactions.
+     *
+     * @return false if it is invalid or conflicts with pooled transactions and was not accepted
+     */
+    public boolean addTransaction(Transaction tx) {
         // IMPLEMENT THIS
-        transactionPool.addTransaction(tx);
+        if (isValidPoolTx(tx) == false)
+            return false;
+        return transactionPool.addTransaction(tx, getFee(tx));
+    }
+
+    /**
+     * Check {@code tx} as {@link #isValidTx(Transaction, UTXOPool)} does against the max height
+     * block's UTXO set, where outputs of pooled transactions may be spent as well. Whether a
+     * pooled transaction spends the same outputs is left to the pool's conflict policy.
+     */
+    public boolean isValidPoolTx(Transaction tx) {
+        if (tx.getHash() == null)
+            return false;
+        // Read the tip state directly, getMaxHeightUTXOPool() may copy it
+        UTXOPool utxoPool = getMaxHeightUTXOState();
+        HashSet<UTXO> claimed = new HashSet<UTXO>();
+        double inputSum = 0.0;
+        double outputSum = 0.0;
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input in = tx.getInput(i);
+            if (in.prevTxHash == null || claimed.add(new UTXO(in.prevTxHash, in.outputIndex)) == false)
+                return false;
+            Transaction.Output prevOutput = getPoolOutput(in, utxoPool);
+            if (prevOutput == null
+                    || verifySignature(prevOutput.address, tx.getRawDataToSign(i), in.signature) == false)
+                return false;
+            inputSum += prevOutput.value;
+        }
+        for (Transaction.Output out : tx.getOutputs()) {
+            if (out.value < 0)
+                return false;
+            outputSum += out.value;
+        }
+        return inputSum >= outputSum;
+    }
+
+    /**
+     * Get the fee of {@code tx}, spending outputs of the max height block's UTXO set or of pooled
+     * transactions. Returns 0 if an input cannot be resolved or the outputs exceed the inputs.
+     */
+    public double getFee(Transaction tx) {
+        // Read the tip state directly, getMaxHeightUTXOPool() may copy it
+        UTXOPool utxoPool = getMaxHeightUTXOState();
+        double fee = 0;
+        for (Transaction.Input in : tx.getInputs()) {
+            Transaction.Output prevOutput = getPoolOutput(in, utxoPool);
+            if (prevOutput == null)
+                return 0;
+            fee += prevOutput.value;
+        }
+        for (Transaction.Output out : tx.getOutputs())
+            fee -= out.value;
+        return Math.max(0, fee);
+    }
+
+    /** @return the output {@code in} spends from {@code utxoPool} or a pooled transaction, null if there is none */
+    private Transaction.Output getPoolOutput(Transaction.Input in, UTXOPool utxoPool) {
+        Transaction.Output prevOutput = utxoPool.getTxOutput(new UTXO(in.prevTxHash, in.outputIndex));
+        if (prevOutput == null) {
+            Transaction prevTx = transactionPool.getTransaction(in.prevTxHash);
+            if (prevTx != null && in.outputIndex >= 0 && in.outputIndex < prevTx.numOutputs())
+                prevOutput = prevTx.getOutput(in.outputIndex);
+        }
+        return prevOutput;
     }
 
     /** Helper function for height map **/
@@ -0,0 +1,319 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Writes the retained window of a {@code BlockChain} to a file and rebuilds the chain from it,
+ * so a restart reads the file once instead of replaying blocks from the genesis block. Blocks are
+ * trusted when loaded, their signatures are not verified again.
+ *
+ * <pre>
+ * snapshot := magic(int) version(byte) stateMode(byte) blockCount(int) maxHeight(int)
+ *             count(int) block* count(int) (length(int) tx)* crc(long)
+ * block    := serialID(int) height(int) length(int) encodedBlock undo state
+ * undo     := utxos utxos             (spent, then created)
+ * state    := kind(byte) [utxos | path(utf) flushSeq(long)]
+ * utxos    := count(int) (length(int) txHash index(int) value(double) address)*
+ * address  := id(int) [length(int) encodedKey]
+ * </pre>
+ *
+ * Blocks are written parents first. Each block that has no retained parent carries its full UTXO
+ * set in OVERLAY mode, the others are rebuilt from their undo records. In SINGLE_TIP mode only the
+ * state block carries the UTXO set; a {@code DiskUTXOPool} state is not copied, only its directory
+ * and flush sequence number are recorded and the pool is opened again when loading, provided it
+ * has not been flushed since. The checksum is verified before anything is decoded. An address is written in full the first time it appears, later
+ * entries only refer to its id. Blocks and transactions are encoded with {@code WireCodec}.
+ */
+public class BlockChainSnapshot {
+
+    public static final int MAGIC = 0x424c4353;
+    public static final byte VERSION = 2;
+
+    // Kinds of UTXO state stored with a block
+    private static final byte NO_STATE = 0;
+    private static final byte HEAP_STATE = 1;
+    private static final byte DISK_STATE = 2;
+
+    // Outputs are an inner class, so decoded ones need an enclosing transaction
+    private static final Transaction OUTPUTS = new Transaction();
+
+    /** Write a snapshot of {@code blockChain} to {@code file}, replacing it only once complete */
+    public static void write(BlockChain blockChain, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            HashMap<PublicKey, Integer> addressIds = new HashMap<PublicKey, Integer>();
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(blockChain.stateMode.ordinal());
+            out.writeInt(blockChain.blockCount);
+            out.writeInt(blockChain.maxHeight);
+
+            ArrayList<BlockChain.BlockWrapper> blocks = sortedBlocks(blockChain);
+            out.writeInt(blocks.size());
+            for (BlockChain.BlockWrapper blockWrapper : blocks) {
+                out.writeInt(blockWrapper.serialID);
+                out.writeInt(blockWrapper.height);
+                writeBytes(out, WireCodec.encode(blockWrapper.block));
+                writeUTXOs(out, blockWrapper.undo.spent, addressIds);
+                writeUTXOs(out, blockWrapper.undo.created, addressIds);
+                UTXOPool state = null;
+                if (blockChain.stateMode == BlockChain.StateMode.SINGLE_TIP) {
+                    if (blockWrapper == blockChain.stateBlock)
+                        state = blockChain.utxoState;
+                } else if (blockWrapper.parent == null) {
+                    state = blockWrapper.utxoPool;
+                }
+                if (state == null) {
+                    out.writeByte(NO_STATE);
+                } else if (state instanceof DiskUTXOPool) {
+                    // Already on disk, make sure it matches the written blocks
+                    DiskUTXOPool diskState = (DiskUTXOPool) state;
+                    diskState.flush();
+                    out.writeByte(DISK_STATE);
+                    out.writeUTF(diskState.getDir().getAbsolutePath());
+                    out.writeLong(diskState.getFlushSeq());
+                } else {
+                    out.writeByte(HEAP_STATE);
+                    writeUTXOs(out, state, addressIds);
+                }
+            }
+
+            // Parents first, so that fees can be computed again when loading
+            ArrayList<Transaction> txs = TxOrder.topological(blockChain.transactionPool.getTransactions());
+            out.writeInt(txs.size());
+            for (Transaction tx : txs)
+                writeBytes(out, WireCodec.encode(tx));
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** Rebuild the block chain saved in {@code file} */
+    public static BlockChain load(File file) throws IOException {
+        checkCrc(file);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        // Closed again if loading fails
+        DiskUTXOPool diskState = null;
+        boolean loaded = false;
+        try {
+            ArrayList<PublicKey> addresses = new ArrayList<PublicKey>();
+            if (in.readInt() != MAGIC)
+                throw new IOException("not a block chain snapshot: " + file);
+            byte version = in.readByte();
+            // Version 1 snapshots only differ in not having disk states
+            if (version != VERSION && version != 1)
+                throw new IOException("unsupported snapshot version: " + file);
+            int mode = in.readByte();
+            if (mode < 0 || mode >= BlockChain.StateMode.values().length)
+                throw new IOException("bad state mode " + mode + ": " + file);
+            BlockChain blockChain = new BlockChain(BlockChain.StateMode.values()[mode]);
+            blockChain.blockCount = in.readInt();
+            blockChain.maxHeight = in.readInt();
+
+            int numBlocks = in.readInt();
+            for (int i = 0; i < numBlocks; i++) {
+                int serialID = in.readInt();
+                int height = in.readInt();
+                Block block = WireCodec.decodeBlock(readBytes(in));
+                BlockUndo undo = new BlockUndo();
+                readUTXOs(in, undo.spent, addresses);
+                readUTXOs(in, undo.created, addresses);
+                UTXOPool state = null;
+                byte kind = in.readByte();
+                if (kind == HEAP_STATE) {
+                    HashMap<UTXO, Transaction.Output> utxos = new HashMap<UTXO, Transaction.Output>();
+                    readUTXOs(in, utxos, addresses);
+                    state = new UTXOPool();
+                    for (Map.Entry<UTXO, Transaction.Output> e : utxos.entrySet())
+                        state.addUTXO(e.getKey(), e.getValue());
+                } else if (kind == DISK_STATE && diskState == null) {
+                    diskState = openDiskState(new File(in.readUTF()), in.readLong());
+                    state = diskState;
+                } else if (kind != NO_STATE) {
+                    throw new IOException("bad UTXO state kind " + kind + ": " + file);
+                }
+                addBlock(blockChain, serialID, height, block, undo, state);
+            }
+            if (blockChain.blockchain.isEmpty())
+                throw new IOException("snapshot without blocks: " + file);
+            blockChain.bestTip = blockChain.forkTips.first();
+            if (blockChain.stateMode == BlockChain.StateMode.SINGLE_TIP && blockChain.utxoState == null)
+                throw new IOException("snapshot without UTXO state: " + file);
+
+            int numTxs = in.readInt();
+            for (int i = 0; i < numTxs; i++)
+                blockChain.addTransaction(WireCodec.decodeTransaction(readBytes(in)));
+            loaded = true;
+            return blockChain;
+        } catch (RuntimeException e) {
+            // Thrown by WireCodec for truncated encodings or ones that do not match their hashes,
+            // and by inconsistent blocks that passed the checksum
+            throw new IOException("corrupt snapshot: " + file, e);
+        } finally {
+            in.close();
+            if (!loaded && diskState != null)
+                diskState.close();
+        }
+    }
+
+    /** Verify the checksum at the end of {@code file} against the rest of it */
+    private static void checkCrc(File file) throws IOException {
+        long length = file.length();
+        if (length < 8)
+            throw new IOException("not a block chain snapshot: " + file);
+        CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file)), new CRC32());
+        DataInputStream in = new DataInputStream(checked);
+        try {
+            byte[] buf = new byte[8192];
+            for (long left = length - 8; left > 0; left -= buf.length)
+                in.readFully(buf, 0, (int) Math.min(buf.length, left));
+            long crc = checked.getChecksum().getValue();
+            if (in.readLong() != crc)
+                throw new IOException("corrupt snapshot: " + file);
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Open the {@code DiskUTXOPool} in {@code dir}, which must not have been flushed since {@code flushSeq} */
+    private static DiskUTXOPool openDiskState(File dir, long flushSeq) throws IOException {
+        if (!dir.isDirectory())
+            throw new IOException("no UTXO state in " + dir);
+        DiskUTXOPool state = new DiskUTXOPool(dir);
+        if (state.getFlushSeq() != flushSeq) {
+            state.close();
+            throw new IOException("UTXO state in " + dir + " has changed since the snapshot");
+        }
+        return state;
+    }
+
+    /** Link a loaded block to its parent and rebuild its UTXO state */
+    private static void addBlock(BlockChain blockChain, int serialID, int height, Block block,
+            BlockUndo undo, UTXOPool state) throws IOException {
+        ByteArrayWrapper hash = new ByteArrayWrapper(block.getHash());
+        BlockChain.BlockWrapper parent = null;
+        if (block.getPrevBlockHash() != null)
+            parent = blockChain.blockchain.get(ByteArrayWrapper.wrap(block.getPrevBlockHash()));
+        BlockChain.BlockWrapper blockWrapper = blockChain.new BlockWrapper(serialID, hash, block, height, null);
+        blockWrapper.parent = parent;
+        blockWrapper.undo = undo;
+        if (blockChain.stateMode == BlockChain.StateMode.SINGLE_TIP) {
+            if (state != null) {
+                blockChain.utxoState = state;
+                blockChain.stateBlock = blockWrapper;
+            }
+        } else if (state != null) {
+            blockWrapper.utxoPool = state;
+        } else if (parent != null) {
+            blockWrapper.utxoPool = UTXOPool.overlay(parent.utxoPool);
+            undo.connect(blockWrapper.utxoPool);
+        } else {
+            throw new IOException("no UTXO state for block at height " + height);
+        }
+        blockChain.blockchain.put(hash, blockWrapper);
+        blockChain.addToHeightMap(height, hash);
+        if (parent != null)
+            blockChain.forkTips.remove(parent);
+        blockChain.forkTips.add(blockWrapper);
+    }
+
+    /** @return the retained blocks, parents before their children */
+    private static ArrayList<BlockChain.BlockWrapper> sortedBlocks(BlockChain blockChain) {
+        ArrayList<BlockChain.BlockWrapper> blocks =
+                new ArrayList<BlockChain.BlockWrapper>(blockChain.blockchain.values());
+        Collections.sort(blocks, new Comparator<BlockChain.BlockWrapper>() {
+            public int compare(BlockChain.BlockWrapper b1, BlockChain.BlockWrapper b2) {
+                if (b1.height != b2.height)
+                    return Integer.compare(b1.height, b2.height);
+                return Integer.compare(b1.serialID, b2.serialID);
+            }
+        });
+        return blocks;
+    }
+
+    private static void writeUTXOs(DataOutputStream out, Map<UTXO, Transaction.Output> utxos,
+            HashMap<PublicKey, Integer> addressIds) throws IOException {
+        out.writeInt(utxos.size());
+        for (Map.Entry<UTXO, Transaction.Output> e : utxos.entrySet())
+            writeUTXO(out, e.getKey(), e.getValue(), addressIds);
+    }
+
+    private static void writeUTXOs(DataOutputStream out, UTXOPool utxoPool,
+            HashMap<PublicKey, Integer> addressIds) throws IOException {
+        ArrayList<UTXO> allUTXO = utxoPool.getAllUTXO();
+        out.writeInt(allUTXO.size());
+        for (UTXO utxo : allUTXO)
+            writeUTXO(out, utxo, utxoPool.getTxOutput(utxo), addressIds);
+    }
+
+    private static void writeUTXO(DataOutputStream out, UTXO utxo, Transaction.Output txOut,
+            HashMap<PublicKey, Integer> addressIds) throws IOException {
+        writeBytes(out, utxo.getTxHash());
+        out.writeInt(utxo.getIndex());
+        out.writeDouble(txOut.value);
+        Integer id = addressIds.get(txOut.address);
+        if (id != null) {
+            out.writeInt(id);
+        } else {
+            // First use of the address
+            out.writeInt(addressIds.size());
+            writeBytes(out, txOut.address.getEncoded());
+            addressIds.put(txOut.address, addressIds.size());
+        }
+    }
+
+    /** Read a list of UTXOs into {@code utxos} */
+    private static void readUTXOs(DataInputStream in, Map<UTXO, Transaction.Output> utxos,
+            ArrayList<PublicKey> addresses) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            UTXO utxo = new UTXO(readBytes(in), in.readInt());
+            double value = in.readDouble();
+            int id = in.readInt();
+            if (id == addresses.size())
+                addresses.add(WireCodec.decodeKey(readBytes(in)));
+            else if (id < 0 || id > addresses.size())
+                throw new IOException("bad address id " + id);
+            utxos.put(utxo, OUTPUTS.new Output(value, addresses.get(id)));
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            throw new IOException("bad length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -1,12 +1,27 @@
 
 import java.security.PublicKey;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
-public class BlockHandler {
+public class BlockHandler implements AutoCloseable {
     private BlockChain blockChain;
+    private BlockTemplateBuilder templateBuilder;
+    private BlockPipeline pipeline;
 
     /** assume blockChain has the genesis block */
     public BlockHandler(BlockChain blockChain) {
+        this(blockChain, null, BlockPipeline.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * assume blockChain has the genesis block. Blocks added asynchronously are decoded and
+     * verified on {@code workers}, null for a pool of their own, with at most {@code capacity}
+     * blocks in flight.
+     */
+    public BlockHandler(BlockChain blockChain, Executor workers, int capacity) {
         this.blockChain = blockChain;
+        templateBuilder = new BlockTemplateBuilder(blockChain);
+        pipeline = new BlockPipeline(this, blockChain, workers, capacity);
     }
 
     /**
@@ -14,34 +29,60 @@ public class BlockHandler {
      * 
      * @return true if the block is valid and has been added, false otherwise
      */
-    public boolean processBlock(Block block) {
+    public synchronized boolean processBlock(Block block) {
         if (block == null)
             return false;
-        return blockChain.addBlock(block);
+        boolean added = blockChain.addBlock(block);
+        // Follow the tip if it has moved
+        templateBuilder.update();
+        return added;
+    }
+
+    /**
+     * add {@code block} to the block chain in the background, see {@link BlockPipeline}. Blocks
+     * are added in the order they are submitted; the caller waits while the pipeline is full.
+     * 
+     * @return completes with true if the block is valid and has been added, false otherwise
+     */
+    public CompletableFuture<Boolean> processBlockAsync(Block block) {
+        if (block == null)
+            return CompletableFuture.completedFuture(Boolean.FALSE);
+        return pipeline.submit(block);
+    }
+
+    /** add a block encoded by {@link WireCodec} in the background, see {@link #processBlockAsync(Block)} */
+    public CompletableFuture<Boolean> processBlockAsync(byte[] encodedBlock) {
+        return pipeline.submit(encodedBlock);
     }
 
     /** create a new {@code block} over the max height {@code block} */
-    public Block createBlock(PublicKey myAddress) {
-        Block parent = blockChain.getMaxHeightBlock();
-        byte[] parentHash = parent.getHash();
-        Block current = new Block(parentHash, myAddress);
-        UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
-        TransactionPool txPool = blockChain.getTransactionPool();
-        TxHandler handler = new TxHandler(uPool);
-        Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
-        Transaction[] rTxs = handler.handleTxs(txs);
-        for (int i = 0; i < rTxs.length; i++)
-            current.addTransaction(rTxs[i]);
-
-        current.finalize();
-        if (blockChain.addBlock(current))
+    public synchronized Block createBlock(PublicKey myAddress) {
+        // The template already holds the valid pooled transactions
+        Block current = templateBuilder.createBlock(myAddress);
+        boolean added = blockChain.addBlock(current);
+        templateBuilder.update();
+        if (added)
             return current;
         else
             return null;
     }
 
     /** process a {@code Transaction} */
-    public void processTx(Transaction tx) {
-        blockChain.addTransaction(tx);
+    public synchronized void processTx(Transaction tx) {
+        if (blockChain.addTransaction(tx))
+            templateBuilder.addTransaction(tx);
+    }
+
+    /**
+     * Stop the threads adding blocks in the background once the blocks in flight have been added.
+     * Blocks submitted to {@link #processBlockAsync(Block)} afterwards complete with false.
+     */
+    public void close() {
+        pipeline.shutdown();
+    }
+
+    /** Get the builder keeping the next block's transactions up to date */
+    public BlockTemplateBuilder getTemplateBuilder() {
+        return templateBuilder;
     }
 }
@@ -0,0 +1,297 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Adds blocks asynchronously in four stages: decoding and hashing, context-free checks, signature
+ * verification, and connecting the block through {@code BlockHandler.processBlock}. The first
+ * three stages run on a worker executor, so several blocks can be decoded and verified at once;
+ * blocks are connected one at a time by a single writer thread, in the order they were submitted.
+ *
+ * <p>
+ * At most {@code capacity} blocks are in flight, which bounds what is queued between the stages.
+ * Submitting another block blocks the caller until an earlier one has been connected.
+ *
+ * <p>
+ * Signatures are verified against outputs of the block itself, of other blocks in flight and of
+ * the max height block's UTXO set, and verified signatures are added to the {@code SignatureCache}
+ * so that the connect stage does not check them again. Since a transaction hash commits to its
+ * outputs, an invalid signature rejects the block before it is connected.
+ */
+public class BlockPipeline {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private BlockHandler blockHandler;
+    private BlockChain blockChain;
+    private Executor workers;
+    // The workers if the pipeline created them, null otherwise
+    private ExecutorService ownWorkers;
+    private ExecutorService writer;
+    private Semaphore permits;
+    // Completes once the last submitted block has been connected
+    private CompletableFuture<Boolean> last;
+    // Transactions of blocks that have been decoded but not connected yet
+    private ConcurrentHashMap<ByteArrayWrapper, Transaction> inFlight;
+    // UTXO set of the max height block, null in SINGLE_TIP mode where the state is not shared
+    private volatile UTXOPool tipState;
+
+    /**
+     * Creates a pipeline adding blocks through {@code blockHandler}, which works on
+     * {@code blockChain}. {@code workers} runs the stages before connecting, null for a pool of
+     * the pipeline's own. Since {@link #submit(Block)} may block, it must not be called from the
+     * worker threads or the writer thread, e.g. in a callback of a returned future.
+     */
+    public BlockPipeline(BlockHandler blockHandler, BlockChain blockChain, Executor workers, int capacity) {
+        this.blockHandler = blockHandler;
+        this.blockChain = blockChain;
+        if (workers == null) {
+            ownWorkers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    daemonThreads("block-pipeline-worker"));
+            workers = ownWorkers;
+        }
+        this.workers = workers;
+        writer = Executors.newSingleThreadExecutor(daemonThreads("block-pipeline-writer"));
+        permits = new Semaphore(capacity);
+        last = CompletableFuture.completedFuture(Boolean.TRUE);
+        inFlight = new ConcurrentHashMap<ByteArrayWrapper, Transaction>();
+        updateTipState();
+    }
+
+    /**
+     * Submit an encoded block, see {@link WireCodec}. Blocks while {@code capacity} blocks are in
+     * flight.
+     *
+     * @return completes with true once the block has been added, false if it is invalid
+     */
+    public CompletableFuture<Boolean> submit(final byte[] encodedBlock) {
+        return submit(new Decoder() {
+            public Block decode() {
+                return WireCodec.decodeBlock(encodedBlock);
+            }
+        });
+    }
+
+    /**
+     * Submit a finalized block. Blocks while {@code capacity} blocks are in flight.
+     *
+     * @return completes with true once the block has been added, false if it is invalid
+     */
+    public CompletableFuture<Boolean> submit(final Block block) {
+        return submit(new Decoder() {
+            public Block decode() {
+                return block;
+            }
+        });
+    }
+
+    /**
+     * Stop the writer thread, and the workers if the pipeline created them, once the blocks in
+     * flight have been connected. Blocks submitted afterwards complete with false.
+     */
+    public void shutdown() {
+        writer.shutdown();
+        if (ownWorkers != null)
+            ownWorkers.shutdown();
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /** Produces the block in the first stage */
+    private interface Decoder {
+        Block decode();
+    }
+
+    private CompletableFuture<Boolean> submit(final Decoder decoder) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.completedFuture(Boolean.FALSE);
+        }
+        CompletableFuture<Block> decoded;
+        try {
+            decoded = CompletableFuture.supplyAsync(new Supplier<Block>() {
+                public Block get() {
+                    return prepare(decoder);
+                }
+            }, workers);
+        } catch (RejectedExecutionException e) {
+            // the pipeline has been shut down
+            permits.release();
+            return CompletableFuture.completedFuture(Boolean.FALSE);
+        }
+        CompletableFuture<Block> prepared = decoded.thenCompose(new Function<Block, CompletableFuture<Block>>() {
+            public CompletableFuture<Block> apply(Block block) {
+                return verifySignatures(block);
+            }
+        }).exceptionally(new Function<Throwable, Block>() {
+            public Block apply(Throwable t) {
+                t.printStackTrace();
+                return null;
+            }
+        });
+        CompletableFuture<Boolean> connected;
+        synchronized (this) {
+            connected = prepared.thenCombineAsync(last, new BiFunction<Block, Boolean, Boolean>() {
+                public Boolean apply(Block block, Boolean previous) {
+                    return connect(block);
+                }
+            }, writer).exceptionally(new Function<Throwable, Boolean>() {
+                // e.g. rejected by a shut down writer, later blocks must still be able to connect
+                public Boolean apply(Throwable t) {
+                    t.printStackTrace();
+                    return Boolean.FALSE;
+                }
+            });
+            last = connected;
+        }
+        // Whether or not the block has been connected
+        connected.whenComplete(new BiConsumer<Boolean, Throwable>() {
+            public void accept(Boolean added, Throwable t) {
+                permits.release();
+            }
+        });
+        return connected;
+    }
+
+    /** Decode and hash the block, then run the checks that need no UTXO set */
+    private Block prepare(Decoder decoder) {
+        Block block = decoder.decode();
+        if (block == null || isWellFormed(block) == false)
+            return null;
+        inFlight.put(ByteArrayWrapper.wrap(block.getCoinbase().getHash()), block.getCoinbase());
+        for (Transaction tx : block.getTransactions())
+            inFlight.put(ByteArrayWrapper.wrap(tx.getHash()), tx);
+        return block;
+    }
+
+    /** @return false if the block fails a check {@code BlockChain.addBlock} would fail as well */
+    private boolean isWellFormed(Block block) {
+        if (block.getHash() == null || block.getPrevBlockHash() == null || block.getCoinbase().getHash() == null)
+            return false;
+        // No output may be spent twice within a block
+        HashSet<UTXO> spent = new HashSet<UTXO>();
+        for (Transaction tx : block.getTransactions()) {
+            if (tx.getHash() == null)
+                return false;
+            for (Transaction.Input in : tx.getInputs()) {
+                if (spent.add(new UTXO(in.prevTxHash, in.outputIndex)) == false)
+                    return false;
+            }
+            for (Transaction.Output out : tx.getOutputs()) {
+                if (out.value < 0)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /** Verify the signatures of each transaction of {@code block} as a separate task */
+    private CompletableFuture<Block> verifySignatures(final Block block) {
+        if (block == null)
+            return CompletableFuture.completedFuture(null);
+        final UTXOPool state = tipState;
+        final HashMap<ByteArrayWrapper, Transaction> blockTxs = new HashMap<ByteArrayWrapper, Transaction>();
+        for (Transaction tx : block.getTransactions())
+            blockTxs.put(ByteArrayWrapper.wrap(tx.getHash()), tx);
+        ArrayList<CompletableFuture<Boolean>> checks = new ArrayList<CompletableFuture<Boolean>>();
+        for (final Transaction tx : block.getTransactions()) {
+            checks.add(CompletableFuture.supplyAsync(new Supplier<Boolean>() {
+                public Boolean get() {
+                    return verifySignatures(tx, blockTxs, state);
+                }
+            }, workers));
+        }
+        final CompletableFuture<?>[] all = checks.toArray(new CompletableFuture<?>[checks.size()]);
+        return CompletableFuture.allOf(all).thenApply(new Function<Void, Block>() {
+            public Block apply(Void v) {
+                for (CompletableFuture<?> check : all) {
+                    if (Boolean.FALSE.equals(check.join())) {
+                        forget(block);
+                        return null;
+                    }
+                }
+                return block;
+            }
+        });
+    }
+
+    /**
+     * Verify the signatures of {@code tx} whose spent outputs can be found, the others are checked
+     * when the block is connected.
+     *
+     * @return false if a signature is invalid
+     */
+    private boolean verifySignatures(Transaction tx, HashMap<ByteArrayWrapper, Transaction> blockTxs, UTXOPool state) {
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input in = tx.getInput(i);
+            if (in.prevTxHash == null || in.signature == null || in.outputIndex < 0)
+                continue;
+            Transaction.Output prevOutput = null;
+            if (state != null)
+                prevOutput = state.getTxOutput(new UTXO(in.prevTxHash, in.outputIndex));
+            if (prevOutput == null) {
+                ByteArrayWrapper prevHash = ByteArrayWrapper.wrap(in.prevTxHash);
+                Transaction prevTx = blockTxs.get(prevHash);
+                if (prevTx == null)
+                    prevTx = inFlight.get(prevHash);
+                if (prevTx != null && in.outputIndex < prevTx.numOutputs())
+                    prevOutput = prevTx.getOutput(in.outputIndex);
+            }
+            if (prevOutput != null
+                    && BlockChain.verifySignature(prevOutput.address, tx.getRawDataToSign(i), in.signature) == false)
+                return false;
+        }
+        return true;
+    }
+
+    /** Connect {@code block} on the writer thread, null if an earlier stage rejected it */
+    private Boolean connect(Block block) {
+        try {
+            if (block == null)
+                return Boolean.FALSE;
+            boolean added = blockHandler.processBlock(block);
+            if (added)
+                updateTipState();
+            forget(block);
+            return Boolean.valueOf(added);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return Boolean.FALSE;
+        }
+    }
+
+    /** Stop resolving outputs from the transactions of {@code block} */
+    private void forget(Block block) {
+        inFlight.remove(ByteArrayWrapper.wrap(block.getCoinbase().getHash()));
+        for (Transaction tx : block.getTransactions())
+            inFlight.remove(ByteArrayWrapper.wrap(tx.getHash()));
+    }
+
+    private void updateTipState() {
+        if (blockChain.stateMode == BlockChain.StateMode.OVERLAY)
+            // The pool of an added block is not modified afterwards
+            tipState = blockChain.getMaxHeightBlockWrapper().utxoPool;
+    }
+}
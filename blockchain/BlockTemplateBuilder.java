@@ -0,0 +1,250 @@
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * Keeps a set of pooled transactions that are valid together on top of the max height block, so
+ * that a new block only has to be assembled and finalized. Transactions are added one at a time as
+ * they enter the pool, however they were added to it. When blocks extend the template's block, their transactions and the transactions
+ * conflicting with them are taken out of the template, and so are transactions the pool has
+ * evicted, replaced or dropped for a block on another branch. The set is only rebuilt from the
+ * whole transaction pool after a reorg.
+ */
+public class BlockTemplateBuilder {
+
+    private BlockChain blockChain;
+    // The block the template builds on
+    private BlockChain.BlockWrapper tip;
+    // Pool removals the template has caught up with
+    private long poolRemovals;
+    // Sequence number of the first pool addition the template has not seen
+    private long poolSeq;
+
+    // UTXO set of the tip with the template's transactions applied
+    private UTXOPool state;
+    private ArrayList<Transaction> txs;
+    private HashSet<ByteArrayWrapper> included;
+    // Transactions spending outputs of transactions not in the template yet, by the missing tx hash
+    private HashMap<ByteArrayWrapper, ArrayList<Transaction>> waiting;
+
+    public BlockTemplateBuilder(BlockChain blockChain) {
+        this.blockChain = blockChain;
+        blockChain.lockTransactionPool();
+        try {
+            rebuild(blockChain.getLiveTransactionPool());
+        } finally {
+            blockChain.unlockTransactionPool();
+        }
+    }
+
+    /** Try to add {@code tx}, which has just been accepted into the transaction pool */
+    public void addTransaction(Transaction tx) {
+        // Taken from the pool with the other new transactions
+        update();
+    }
+
+    /**
+     * Bring the template up to date if the max height block or the pool has changed. Blocks on top
+     * of the template's block are applied to it, any other change of the max height block rebuilds
+     * it, and transactions added to the pool since are tried one by one.
+     *
+     * @return true if the template has changed
+     */
+    public boolean update() {
+        // The live pool, copying it on every change would cost more than the change itself
+        blockChain.lockTransactionPool();
+        try {
+            return update(blockChain.getLiveTransactionPool());
+        } finally {
+            blockChain.unlockTransactionPool();
+        }
+    }
+
+    private boolean update(TransactionPool txPool) {
+        BlockChain.BlockWrapper newTip = blockChain.getMaxHeightBlockWrapper();
+        boolean removed = poolRemovals != txPool.getRemovals();
+        if (tip == newTip && removed == false && poolSeq == txPool.getNextSeq())
+            return false;
+        ArrayList<Block> connected = blocksSince(newTip);
+        if (connected == null) {
+            // A reorg, the template's block is no longer below the max height block
+            rebuild(txPool);
+            return true;
+        }
+        if (tip != newTip || removed) {
+            tip = newTip;
+            poolRemovals = txPool.getRemovals();
+            // Evicted and replaced transactions, and those conflicting with any added block, are gone
+            dropUnpooledWaiting(txPool);
+            applyBlocks(connected, txPool);
+        }
+        // Also the ones added through BlockChain.addTransaction rather than addTransaction
+        long nextSeq = txPool.getNextSeq();
+        for (Transaction tx : txPool.getTransactionsSince(poolSeq))
+            add(tx, txPool);
+        poolSeq = nextSeq;
+        return true;
+    }
+
+    /** @return the template's transactions, parents before the transactions spending them */
+    public ArrayList<Transaction> getTransactions() {
+        update();
+        return new ArrayList<Transaction>(txs);
+    }
+
+    /** @return a finalized block with the template's transactions, which is not added to the chain */
+    public Block createBlock(PublicKey myAddress) {
+        update();
+        Block block = new Block(tip.block.getHash(), myAddress);
+        for (int i = 0; i < txs.size(); i++)
+            block.addTransaction(txs.get(i));
+        block.finalize();
+        return block;
+    }
+
+    /** Start over from the pooled transactions on top of the max height block */
+    private void rebuild(TransactionPool txPool) {
+        tip = blockChain.getMaxHeightBlockWrapper();
+        poolRemovals = txPool.getRemovals();
+        poolSeq = txPool.getNextSeq();
+        // Template changes go to a layer of their own
+        state = UTXOPool.overlay(blockChain.getMaxHeightUTXOState());
+        txs = new ArrayList<Transaction>();
+        included = new HashSet<ByteArrayWrapper>();
+        waiting = new HashMap<ByteArrayWrapper, ArrayList<Transaction>>();
+        // Highest fee rate first, parents before their children
+        for (Transaction tx : TxOrder.topological(txPool.getTransactions()))
+            add(tx, txPool);
+    }
+
+    /**
+     * @return the blocks from the template's block up to {@code newTip}, oldest first, or null if
+     *         {@code newTip} does not build on the template's block
+     */
+    private ArrayList<Block> blocksSince(BlockChain.BlockWrapper newTip) {
+        ArrayList<Block> blocks = new ArrayList<Block>();
+        for (BlockChain.BlockWrapper w = newTip; w != null && w.height >= tip.height; w = w.parent) {
+            if (w == tip) {
+                Collections.reverse(blocks);
+                return blocks;
+            }
+            blocks.add(w.block);
+        }
+        return null;
+    }
+
+    /**
+     * Take the transactions of {@code blocks}, the ones conflicting with them, the ones no longer
+     * pooled and their descendants out of the template, then add the waiting transactions whose
+     * parents have been mined
+     */
+    private void applyBlocks(ArrayList<Block> blocks, TransactionPool txPool) {
+        HashSet<ByteArrayWrapper> mined = new HashSet<ByteArrayWrapper>();
+        HashSet<UTXO> blockSpent = new HashSet<UTXO>();
+        for (Block block : blocks) {
+            mined.add(new ByteArrayWrapper(block.getCoinbase().getHash()));
+            for (Transaction tx : block.getTransactions()) {
+                mined.add(new ByteArrayWrapper(tx.getHash()));
+                for (Transaction.Input in : tx.getInputs())
+                    blockSpent.add(new UTXO(in.prevTxHash, in.outputIndex));
+            }
+        }
+        // Parents come before their children in txs, so one pass finds all descendants
+        HashSet<ByteArrayWrapper> dropped = new HashSet<ByteArrayWrapper>();
+        ArrayList<Transaction> kept = new ArrayList<Transaction>();
+        for (Transaction tx : txs) {
+            ByteArrayWrapper hash = ByteArrayWrapper.wrap(tx.getHash());
+            if (mined.contains(hash))
+                continue;
+            boolean drop = txPool.getTransaction(tx.getHash()) == null;
+            for (int i = 0; i < tx.numInputs() && drop == false; i++) {
+                Transaction.Input in = tx.getInput(i);
+                drop = blockSpent.contains(new UTXO(in.prevTxHash, in.outputIndex))
+                        || dropped.contains(ByteArrayWrapper.wrap(in.prevTxHash));
+            }
+            if (drop)
+                dropped.add(hash);
+            else
+                kept.add(tx);
+        }
+        // The kept transactions are still valid together, only their UTXO changes are applied again
+        state = UTXOPool.overlay(blockChain.getMaxHeightUTXOState());
+        txs = new ArrayList<Transaction>(kept.size());
+        included = new HashSet<ByteArrayWrapper>();
+        for (Transaction tx : kept) {
+            blockChain.handleValidTx(tx, state);
+            txs.add(tx);
+            included.add(new ByteArrayWrapper(tx.getHash()));
+        }
+        for (ByteArrayWrapper hash : mined) {
+            ArrayList<Transaction> children = waiting.remove(hash);
+            if (children == null)
+                continue;
+            for (Transaction child : children) {
+                if (txPool.getTransaction(child.getHash()) != null)
+                    add(child, txPool);
+            }
+        }
+    }
+
+    /** Forget the waiting transactions the pool no longer has */
+    private void dropUnpooledWaiting(TransactionPool txPool) {
+        Iterator<ArrayList<Transaction>> it = waiting.values().iterator();
+        while (it.hasNext()) {
+            ArrayList<Transaction> list = it.next();
+            for (int i = list.size() - 1; i >= 0; i--) {
+                if (txPool.getTransaction(list.get(i).getHash()) == null)
+                    list.remove(i);
+            }
+            if (list.isEmpty())
+                it.remove();
+        }
+    }
+
+    /** Add {@code tx} and every waiting transaction it makes valid */
+    private void add(Transaction tx, TransactionPool txPool) {
+        ArrayDeque<Transaction> queue = new ArrayDeque<Transaction>();
+        queue.add(tx);
+        while (!queue.isEmpty()) {
+            Transaction next = queue.poll();
+            ByteArrayWrapper hash = new ByteArrayWrapper(next.getHash());
+            if (included.contains(hash))
+                continue;
+            if (next != tx && txPool.getTransaction(next.getHash()) == null)
+                // Left the pool while it was waiting
+                continue;
+            if (blockChain.isValidTx(next, state) == false) {
+                waitForParents(next);
+                continue;
+            }
+            blockChain.handleValidTx(next, state);
+            txs.add(next);
+            included.add(hash);
+            ArrayList<Transaction> children = waiting.remove(hash);
+            if (children != null)
+                queue.addAll(children);
+        }
+    }
+
+    /** Park {@code tx} until the transactions whose outputs it is missing are added */
+    private void waitForParents(Transaction tx) {
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash == null || state.contains(new UTXO(in.prevTxHash, in.outputIndex)))
+                continue;
+            ByteArrayWrapper parent = new ByteArrayWrapper(in.prevTxHash);
+            if (included.contains(parent))
+                // Spends an output that is gone, it will never become valid
+                continue;
+            ArrayList<Transaction> list = waiting.get(parent);
+            if (list == null) {
+                list = new ArrayList<Transaction>();
+                waiting.put(parent, list);
+            }
+            list.add(tx);
+        }
+    }
+}
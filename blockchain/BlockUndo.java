@@ -0,0 +1,47 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The net UTXO changes made by connecting a block: the outputs it spent from its parent's UTXO set
+ * and the UTXOs it created. Outputs created and spent inside the same block are not recorded.
+ */
+public class BlockUndo {
+
+    /** UTXOs of the parent state spent by the block, with the outputs they pointed to */
+    public HashMap<UTXO, Transaction.Output> spent;
+
+    /** UTXOs created by the block and still unspent at its end */
+    public HashMap<UTXO, Transaction.Output> created;
+
+    public BlockUndo() {
+        spent = new HashMap<UTXO, Transaction.Output>();
+        created = new HashMap<UTXO, Transaction.Output>();
+    }
+
+    /** Record that {@code utxo} pointing to {@code txOut} was spent */
+    public void spend(UTXO utxo, Transaction.Output txOut) {
+        if (created.remove(utxo) == null)
+            spent.put(utxo, txOut);
+    }
+
+    /** Record that {@code utxo} pointing to {@code txOut} was created */
+    public void create(UTXO utxo, Transaction.Output txOut) {
+        created.put(utxo, txOut);
+    }
+
+    /** Apply the block to {@code utxoPool}, which must hold the parent's UTXO set */
+    public void connect(UTXOPool utxoPool) {
+        for (UTXO utxo : spent.keySet())
+            utxoPool.removeUTXO(utxo);
+        for (Map.Entry<UTXO, Transaction.Output> e : created.entrySet())
+            utxoPool.addUTXO(e.getKey(), e.getValue());
+    }
+
+    /** Revert the block from {@code utxoPool}, which must hold the block's own UTXO set */
+    public void disconnect(UTXOPool utxoPool) {
+        for (UTXO utxo : created.keySet())
+            utxoPool.removeUTXO(utxo);
+        for (Map.Entry<UTXO, Transaction.Output> e : spent.entrySet())
+            utxoPool.addUTXO(e.getKey(), e.getValue());
+    }
+}
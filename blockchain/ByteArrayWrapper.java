@@ -1,18 +1,46 @@
-
 import java.util.Arrays;
 
-/** a wrapper for byte array with hashCode and equals function implemented */
+/**
+ * a wrapper for byte array with hashCode and equals function implemented. The hash code is
+ * computed once; for 32 byte arrays, which are SHA-256 digests here, it is taken from the first
+ * four bytes.
+ */
 public class ByteArrayWrapper {
 
-    private byte[] contents;
+    public static final int DIGEST_LENGTH = 32;
+
+    private final byte[] contents;
+    private final int hash;
 
     public ByteArrayWrapper(byte[] b) {
-        contents = new byte[b.length];
-        for (int i = 0; i < contents.length; i++)
-            contents[i] = b[i];
+        contents = Arrays.copyOf(b, b.length);
+        hash = hashOf(contents);
+    }
+
+    private ByteArrayWrapper(byte[] b, int hash) {
+        contents = b;
+        this.hash = hash;
+    }
+
+    /**
+     * Wrap {@code b} without copying it. Only use this for arrays that are never modified while
+     * the wrapper is in use, e.g. for lookups.
+     */
+    public static ByteArrayWrapper wrap(byte[] b) {
+        return new ByteArrayWrapper(b, hashOf(b));
+    }
+
+    private static int hashOf(byte[] b) {
+        if (b.length == DIGEST_LENGTH)
+            // Digest bytes are already uniformly distributed
+            return ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+        return Arrays.hashCode(b);
     }
 
     public boolean equals(Object other) {
+        if (other == this) {
+            return true;
+        }
         if (other == null) {
             return false;
         }
@@ -21,27 +49,10 @@ public class ByteArrayWrapper {
         }
 
         ByteArrayWrapper otherB = (ByteArrayWrapper) other;
-        byte[] b = otherB.contents;
-        if (contents == null) {
-            if (b == null)
-                return true;
-            else
-                return false;
-        } else {
-            if (b == null)
-                return false;
-            else {
-                if (contents.length != b.length)
-                    return false;
-                for (int i = 0; i < b.length; i++)
-                    if (contents[i] != b[i])
-                        return false;
-                return true;
-            }
-        }
+        return hash == otherB.hash && Arrays.equals(contents, otherB.contents);
     }
 
     public int hashCode() {
-        return Arrays.hashCode(contents);
+        return hash;
     }
 }
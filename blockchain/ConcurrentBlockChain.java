@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A BlockChain that may be read from any thread while blocks are added. Writers are serialized
+ * and publish an immutable {@link View} of the retained window after each block; readers only
+ * read the current view through a volatile reference and never block.
+ *
+ * <p>
+ * It keeps its UTXO state in OVERLAY mode, where the pool of a block is never changed once the
+ * block has been added, so views can share the pools. The transaction pool has a lock of its own.
+ * Readers get a snapshot of it that is copied at most once per change by a reader that finds the
+ * lock free; while a writer holds the lock, readers get the last snapshot instead of waiting.
+ * Callers following the pool as it changes read the live pool under the lock instead. The public
+ * fields of {@code BlockChain} belong to the writer.
+ */
+public class ConcurrentBlockChain extends BlockChain {
+
+    /** The retained window as of one block, never modified once published */
+    public static class View {
+        public final BlockWrapper tip;
+        public final int maxHeight;
+        public final Map<ByteArrayWrapper, BlockWrapper> blocks;
+        public final Map<Integer, ArrayList<ByteArrayWrapper>> heights;
+        public final SortedSet<BlockWrapper> forkTips;
+
+        View(BlockWrapper tip, int maxHeight, Map<ByteArrayWrapper, BlockWrapper> blocks,
+                Map<Integer, ArrayList<ByteArrayWrapper>> heights, SortedSet<BlockWrapper> forkTips) {
+            this.tip = tip;
+            this.maxHeight = maxHeight;
+            this.blocks = blocks;
+            this.heights = heights;
+            this.forkTips = forkTips;
+        }
+    }
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantLock poolLock = new ReentrantLock();
+    /** A copy of the transaction pool as of one change */
+    private static class PoolSnapshot {
+        final long version;
+        final TransactionPool pool;
+
+        PoolSnapshot(long version, TransactionPool pool) {
+            this.version = version;
+            this.pool = pool;
+        }
+    }
+
+    private volatile View view;
+    // Number of changes to transactionPool, written under poolLock
+    private volatile long poolVersion;
+    // The latest copy of transactionPool for readers
+    private volatile PoolSnapshot poolSnapshot;
+
+    public ConcurrentBlockChain(Block genesisBlock) {
+        super(genesisBlock, StateMode.OVERLAY);
+        poolSnapshot = new PoolSnapshot(0, new TransactionPool(transactionPool));
+        publish();
+    }
+
+    /** Get the view published after the last added block */
+    public View getView() {
+        return view;
+    }
+
+    public boolean addBlock(Block block) {
+        writeLock.lock();
+        try {
+            boolean added = super.addBlock(block);
+            if (added)
+                publish();
+            return added;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean[] addBlocks(List<Block> blocks) {
+        writeLock.lock();
+        try {
+            boolean[] added = super.addBlocks(blocks);
+            publish();
+            return added;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean addTransaction(Transaction tx) {
+        poolLock.lock();
+        try {
+            poolVersion++;
+            // The fee is computed against the published tip
+            return super.addTransaction(tx);
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    public void updateTransactionPool(Block block) {
+        poolLock.lock();
+        try {
+            poolVersion++;
+            super.updateTransactionPool(block);
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    public void snapshotIfDue() {
+        // Snapshots read the transaction pool
+        poolLock.lock();
+        try {
+            super.snapshotIfDue();
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    /** Get the maximum height block wrapper of the published view */
+    public BlockWrapper getMaxHeightBlockWrapper() {
+        return view.tip;
+    }
+
+    public SortedSet<BlockWrapper> getForkTips() {
+        return view.forkTips;
+    }
+
+    public Block getBlock(byte[] hash) {
+        BlockWrapper blockWrapper = view.blocks.get(ByteArrayWrapper.wrap(hash));
+        if (blockWrapper != null)
+            return blockWrapper.block;
+        if (archive == null)
+            return null;
+        try {
+            return archive.getBlock(hash);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Get a snapshot of the transaction pool, which is shared by readers and must not be modified.
+     * It may miss the changes a writer is making at the time of the call.
+     */
+    public TransactionPool getTransactionPool() {
+        PoolSnapshot snapshot = poolSnapshot;
+        if (snapshot.version == poolVersion || poolLock.tryLock() == false)
+            return snapshot.pool;
+        try {
+            if (poolSnapshot.version != poolVersion)
+                poolSnapshot = new PoolSnapshot(poolVersion, new TransactionPool(transactionPool));
+            return poolSnapshot.pool;
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    public void lockTransactionPool() {
+        poolLock.lock();
+    }
+
+    public void unlockTransactionPool() {
+        poolLock.unlock();
+    }
+
+    /** Publish the current window, the window is small enough to copy on every block */
+    private void publish() {
+        HashMap<Integer, ArrayList<ByteArrayWrapper>> heightsCopy = new HashMap<Integer, ArrayList<ByteArrayWrapper>>();
+        for (Map.Entry<Integer, ArrayList<ByteArrayWrapper>> e : heights.entrySet())
+            heightsCopy.put(e.getKey(), new ArrayList<ByteArrayWrapper>(e.getValue()));
+        SortedSet<BlockWrapper> tips = Collections.unmodifiableSortedSet(new TreeSet<BlockWrapper>(forkTips));
+        view = new View(bestTip, maxHeight,
+                Collections.unmodifiableMap(new HashMap<ByteArrayWrapper, BlockWrapper>(blockchain)),
+                Collections.unmodifiableMap(heightsCopy), tips);
+    }
+}
@@ -1,7 +1,5 @@
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.Signature;
 import java.security.SignatureException;
 
 public class Crypto {
@@ -13,20 +11,21 @@ public class Crypto {
      *         algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+        // Signatures checked before, e.g. for the transaction pool, are not checked again
+        SignatureCache cache = SignatureCache.getShared();
+        ByteArrayWrapper key = SignatureCache.key(pubKey, message, signature);
+        if (key != null && cache.contains(key)) {
+            return true;
         }
         try {
-            sig.initVerify(pubKey);
+            // Reuses this thread's verifier for pubKey
+            boolean verified = CryptoEngines.verify(pubKey, message, signature);
+            if (verified && key != null) {
+                cache.add(key);
+            }
+            return verified;
         } catch (InvalidKeyException e) {
             e.printStackTrace();
-        }
-        try {
-            sig.update(message);
-            return sig.verify(signature);
         } catch (SignatureException e) {
             e.printStackTrace();
         }
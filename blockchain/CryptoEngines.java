@@ -0,0 +1,85 @@
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-thread SHA-256 and SHA256withRSA engines. Looking up a provider and building a new engine
+ * for every hash or signature check is expensive, so each thread reuses its own engines and keeps
+ * verifiers already initialized for the public keys it has seen recently.
+ */
+public class CryptoEngines {
+
+    /** Number of initialized verifiers each thread keeps */
+    public static final int VERIFIERS_PER_THREAD = 64;
+
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException x) {
+                throw new IllegalStateException(x);
+            }
+        }
+    };
+
+    private static final ThreadLocal<LinkedHashMap<PublicKey, Signature>> verifiers =
+            new ThreadLocal<LinkedHashMap<PublicKey, Signature>>() {
+        protected LinkedHashMap<PublicKey, Signature> initialValue() {
+            return new LinkedHashMap<PublicKey, Signature>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<PublicKey, Signature> eldest) {
+                    return size() > VERIFIERS_PER_THREAD;
+                }
+            };
+        }
+    };
+
+    /**
+     * @return this thread's SHA-256 engine, reset. It must not be kept across calls that may hash
+     *         on the same thread.
+     */
+    public static MessageDigest sha256() {
+        MessageDigest md = digests.get();
+        md.reset();
+        return md;
+    }
+
+    /** @return the SHA-256 digest of {@code data} */
+    public static byte[] sha256(byte[] data) {
+        return sha256().digest(data);
+    }
+
+    /**
+     * @return true if {@code signature} is a valid SHA256withRSA signature of {@code message}
+     *         under {@code pubKey}
+     */
+    public static boolean verify(PublicKey pubKey, byte[] message, byte[] signature)
+            throws InvalidKeyException, SignatureException {
+        LinkedHashMap<PublicKey, Signature> cache = verifiers.get();
+        Signature sig = cache.get(pubKey);
+        if (sig == null) {
+            try {
+                sig = Signature.getInstance("SHA256withRSA");
+            } catch (NoSuchAlgorithmException x) {
+                throw new IllegalStateException(x);
+            }
+            sig.initVerify(pubKey);
+            cache.put(pubKey, sig);
+        }
+        try {
+            // verify() resets the engine to the state right after initVerify()
+            sig.update(message);
+            return sig.verify(signature);
+        } catch (SignatureException e) {
+            cache.remove(pubKey);
+            throw e;
+        } catch (RuntimeException e) {
+            cache.remove(pubKey);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.BufferedInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A UTXOPool that keeps the full UTXO set on disk in a memory mapped {@code UTXOTable}, so its size
+ * is not bounded by the JVM heap. Recently used entries are cached on the heap, and changes are
+ * buffered until {@link #flush()}, which {@code BlockChain} calls once per block.
+ *
+ * <p>
+ * Addresses are stored once in an append-only log and referenced by id from the table. Every flush
+ * that changes the table bumps a sequence number kept next to it, which tells apart two states of
+ * the same size. Use it as
+ * the state of a {@code BlockChain} in SINGLE_TIP mode; it keeps the pool's behavior otherwise.
+ */
+public class DiskUTXOPool extends UTXOPool {
+
+    public static final int DEFAULT_CACHE_SIZE = 1 << 16;
+
+    // Outputs are an inner class, so decoded ones need an enclosing transaction
+    private static final Transaction OUTPUTS = new Transaction();
+
+    private File dir;
+    private MappedTable table;
+
+    // Address log: id -> key, and key -> id
+    private FileOutputStream addressLog;
+    private boolean addressLogDirty;
+    private ArrayList<PublicKey> addresses;
+    private HashMap<PublicKey, Integer> addressIds;
+
+    // Number of flushes that changed the table, stored in the sequence file
+    private RandomAccessFile seqFile;
+    private long flushSeq;
+
+    // Changes not written to the table yet, a null output marks a removal
+    private HashMap<UTXO, Transaction.Output> pending;
+    private LinkedHashMap<UTXO, Transaction.Output> cache;
+
+    /** A UTXOTable in a memory mapped file */
+    private static class MappedTable extends UTXOTable {
+        private File file;
+        private RandomAccessFile raf;
+        // The grown table being built next to the current one
+        private File nextFile;
+        private RandomAccessFile nextRaf;
+
+        MappedTable(File file) throws IOException {
+            this.file = file;
+            nextFile = new File(file.getPath() + ".new");
+            if (file.exists() && file.length() > 0) {
+                raf = new RandomAccessFile(file, "rw");
+                load(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length()));
+            } else {
+                init(MIN_CAPACITY);
+            }
+        }
+
+        /** The first table is created in place, grown ones next to it until replaced() */
+        protected ByteBuffer allocate(int bytes) throws IOException {
+            RandomAccessFile target = new RandomAccessFile(raf == null ? file : nextFile, "rw");
+            target.setLength(0);
+            target.setLength(bytes);
+            if (raf == null)
+                raf = target;
+            else
+                nextRaf = target;
+            return target.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        }
+
+        protected void replaced(ByteBuffer old) throws IOException {
+            force();
+            raf.close();
+            if (!nextFile.renameTo(file))
+                throw new IOException("cannot replace " + file);
+            raf = nextRaf;
+            nextRaf = null;
+        }
+
+        void force() {
+            ((MappedByteBuffer) slots).force();
+        }
+
+        void close() throws IOException {
+            force();
+            raf.close();
+        }
+    }
+
+    /** Opens the pool stored in {@code dir}, creating an empty one if needed */
+    public DiskUTXOPool(File dir) throws IOException {
+        this(dir, DEFAULT_CACHE_SIZE);
+    }
+
+    /** Opens the pool stored in {@code dir}, caching up to {@code cacheSize} entries in memory */
+    public DiskUTXOPool(File dir, final int cacheSize) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+        table = new MappedTable(new File(dir, "utxo.tbl"));
+        addresses = new ArrayList<PublicKey>();
+        addressIds = new HashMap<PublicKey, Integer>();
+        loadAddresses(new File(dir, "addresses.dat"));
+        addressLog = new FileOutputStream(new File(dir, "addresses.dat"), true);
+        seqFile = new RandomAccessFile(new File(dir, "flush.seq"), "rw");
+        if (seqFile.length() >= 8)
+            flushSeq = seqFile.readLong();
+        pending = new HashMap<UTXO, Transaction.Output>();
+        cache = new LinkedHashMap<UTXO, Transaction.Output>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<UTXO, Transaction.Output> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        pending.put(utxo, txOut);
+        cache.put(utxo, txOut);
+    }
+
+    public void removeUTXO(UTXO utxo) {
+        pending.put(utxo, null);
+        cache.remove(utxo);
+    }
+
+    public Transaction.Output getTxOutput(UTXO ut) {
+        if (pending.containsKey(ut))
+            return pending.get(ut);
+        Transaction.Output txOut = cache.get(ut);
+        if (txOut != null)
+            return txOut;
+        if (ut.getTxHash().length != UTXOTable.HASH_LENGTH)
+            return null;
+        int slot = table.find(ut.getTxHash(), ut.getIndex());
+        if (slot < 0)
+            return null;
+        txOut = OUTPUTS.new Output(table.getValue(slot), addresses.get(table.getAddressId(slot)));
+        cache.put(ut, txOut);
+        return txOut;
+    }
+
+    public boolean contains(UTXO utxo) {
+        return getTxOutput(utxo) != null;
+    }
+
+    public ArrayList<UTXO> getAllUTXO() {
+        flush();
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(table.size());
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            if (table.isUsed(slot))
+                allUTXO.add(new UTXO(table.getTxHash(slot), table.getIndex(slot)));
+        }
+        return allUTXO;
+    }
+
+    /** @return the directory the pool is stored in */
+    public File getDir() {
+        return dir;
+    }
+
+    /** @return the number of flushes that have changed the pool since it was created */
+    public long getFlushSeq() {
+        return flushSeq;
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        flush();
+        return table.size();
+    }
+
+    /** Write all buffered changes to disk */
+    public void flush() {
+        if (pending.isEmpty())
+            return;
+        try {
+            // Bumped first, so that a table changed by an interrupted flush never keeps the old number
+            flushSeq++;
+            seqFile.seek(0);
+            seqFile.writeLong(flushSeq);
+            seqFile.getChannel().force(false);
+            for (Map.Entry<UTXO, Transaction.Output> e : pending.entrySet()) {
+                UTXO utxo = e.getKey();
+                Transaction.Output txOut = e.getValue();
+                if (txOut == null)
+                    table.remove(utxo.getTxHash(), utxo.getIndex());
+                else
+                    table.put(utxo.getTxHash(), utxo.getIndex(), txOut.value, addressId(txOut.address));
+            }
+            if (addressLogDirty) {
+                // Ids in the table must never point past the log
+                addressLog.getChannel().force(false);
+                addressLogDirty = false;
+            }
+            table.force();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        pending.clear();
+    }
+
+    public void close() throws IOException {
+        flush();
+        addressLog.close();
+        seqFile.close();
+        table.close();
+    }
+
+    private int addressId(PublicKey address) throws IOException {
+        Integer id = addressIds.get(address);
+        if (id != null)
+            return id;
+        byte[] encoded = address.getEncoded();
+        addressLog.write(ByteBuffer.allocate(4).putInt(encoded.length).array());
+        addressLog.write(encoded);
+        addressLogDirty = true;
+        addresses.add(address);
+        addressIds.put(address, addresses.size() - 1);
+        return addresses.size() - 1;
+    }
+
+    /** Read the address log, cutting off a partly written last record */
+    private void loadAddresses(File file) throws IOException {
+        if (!file.exists())
+            return;
+        long valid = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                int length = in.readInt();
+                byte[] encoded = new byte[length];
+                in.readFully(encoded);
+                PublicKey address = WireCodec.decodeKey(encoded);
+                addressIds.put(address, addresses.size());
+                addresses.add(address);
+                valid += 4 + length;
+            }
+        } catch (EOFException e) {
+            // End of the log
+        } finally {
+            in.close();
+        }
+        if (valid < file.length()) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(valid);
+            raf.close();
+        }
+    }
+}
@@ -146,6 +146,69 @@ public class Main {
     	block5.finalize();
     	System.out.println("Block5 Added ok: " + bh.processBlock(block5));
 
+    	/*
+    	 * Add a fork batch [A on a tip, B on A, C on another tip at A's height] in parallel;
+    	 * as when adding them one by one, B reaches the new height first and becomes the tip
+    	 */
+    	BlockChain forkChain = new BlockChain(genesis);
+    	forkChain.setVerifyExecutor(java.util.concurrent.ForkJoinPool.commonPool());
+    	forkChain.addBlock(block1);
+    	forkChain.addBlock(block2);
+    	forkChain.addBlock(block3);
+    	Block forkA = emptyBlock(block2, pk_bob);
+    	Block forkB = emptyBlock(forkA, pk_bob);
+    	Block forkC = emptyBlock(block3, pk_alice);
+    	boolean[] forkAdded = forkChain.addBlocks(java.util.Arrays.asList(forkA, forkB, forkC));
+    	System.out.println("Fork batch Added ok: " + (forkAdded[0] && forkAdded[1] && forkAdded[2]));
+    	System.out.println("Fork batch tip ok: "
+    	        + java.util.Arrays.equals(forkChain.getMaxHeightBlock().getHash(), forkB.getHash()));
+
+    	/*
+    	 * An unsigned spend of block5's coinbase neither pins it nor replaces the valid spend
+    	 */
+    	for (TransactionPool.ConflictPolicy policy : TransactionPool.ConflictPolicy.values()) {
+    	    BlockChain poolChain = new BlockChain(genesis);
+    	    poolChain.getTransactionPool().setConflictPolicy(policy);
+    	    Tx valid = new Tx();
+    	    valid.addInput(genesis.getCoinbase().getHash(), 0);
+    	    valid.addOutput(24, pk_alice.getPublic());
+    	    valid.signTx(pk_scrooge.getPrivate(), 0);
+    	    Tx forged = new Tx();
+    	    forged.addInput(genesis.getCoinbase().getHash(), 0);
+    	    forged.addOutput(1, pk_bob.getPublic());
+    	    forged.addSignature(new byte[256], 0);
+    	    forged.finalize();
+    	    boolean forgedFirst = poolChain.addTransaction(forged);
+    	    boolean validAdded = poolChain.addTransaction(valid);
+    	    boolean forgedLater = poolChain.addTransaction(forged);
+    	    System.out.println("Forged tx rejected ok (" + policy + "): " + (!forgedFirst && validAdded && !forgedLater
+    	            && poolChain.getTransactionPool().getTransaction(valid.getHash()) != null
+    	            && poolChain.getTransactionPool().getTransaction(forged.getHash()) == null));
+    	}
+
+    	/*
+    	 * A transaction added to the chain directly, not through the handler, is still mined
+    	 */
+    	BlockChain directChain = new BlockChain(genesis);
+    	BlockHandler directHandler = new BlockHandler(directChain);
+    	Tx direct = new Tx();
+    	direct.addInput(genesis.getCoinbase().getHash(), 0);
+    	direct.addOutput(25, pk_bob.getPublic());
+    	direct.signTx(pk_scrooge.getPrivate(), 0);
+    	directChain.addTransaction(direct);
+    	Block directBlock = directHandler.createBlock(pk_alice.getPublic());
+    	System.out.println("Direct tx mined ok: " + (directBlock != null && directBlock.getTransactions().size() == 1
+    	        && java.util.Arrays.equals(directBlock.getTransaction(0).getHash(), direct.getHash())));
+    	directHandler.close();
+    	bh.close();
+
+    }
+
+    /** A finalized block without transactions on top of {@code prev} */
+    private static Block emptyBlock(Block prev, KeyPair miner) {
+        Block block = new Block(prev.getHash(), miner.getPublic());
+        block.finalize();
+        return block;
     }
 
     public static class Tx extends Transaction { 
@@ -0,0 +1,110 @@
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A binary Merkle tree over 32 byte hashes that supports appending and replacing leaves in
+ * O(log n). A node without a right sibling is paired with itself.
+ */
+public class MerkleTree {
+
+    // levels.get(0) holds the leaves, the last level holds the root
+    private ArrayList<ArrayList<byte[]>> levels;
+
+    public MerkleTree() {
+        levels = new ArrayList<ArrayList<byte[]>>();
+        levels.add(new ArrayList<byte[]>());
+    }
+
+    /** @return the number of leaves */
+    public int size() {
+        return levels.get(0).size();
+    }
+
+    /** @return the leaf at {@code index} */
+    public byte[] getLeaf(int index) {
+        return levels.get(0).get(index);
+    }
+
+    /** Append {@code leaf} to the tree */
+    public void add(byte[] leaf) {
+        checkLeaf(leaf);
+        levels.get(0).add(leaf);
+        updatePath(levels.get(0).size() - 1);
+    }
+
+    /** Replace the leaf at {@code index} with {@code leaf} */
+    public void set(int index, byte[] leaf) {
+        checkLeaf(leaf);
+        levels.get(0).set(index, leaf);
+        updatePath(index);
+    }
+
+    /** @return the root of the tree, or null if it has no leaves */
+    public byte[] getRoot() {
+        if (size() == 0)
+            return null;
+        return levels.get(levels.size() - 1).get(0);
+    }
+
+    /**
+     * @return the sibling hashes from the leaf at {@code index} up to the root, which prove that
+     *         the leaf is part of the tree
+     */
+    public ArrayList<byte[]> getProof(int index) {
+        ArrayList<byte[]> proof = new ArrayList<byte[]>();
+        for (int l = 0; l < levels.size() - 1; l++) {
+            ArrayList<byte[]> level = levels.get(l);
+            int sibling = index ^ 1;
+            proof.add(sibling < level.size() ? level.get(sibling) : level.get(index));
+            index /= 2;
+        }
+        return proof;
+    }
+
+    /** @return true if {@code proof} shows that {@code leaf} is at {@code index} under {@code root} */
+    public static boolean verifyProof(byte[] leaf, int index, ArrayList<byte[]> proof, byte[] root) {
+        byte[] node = leaf;
+        for (byte[] sibling : proof) {
+            if ((index & 1) == 0)
+                node = hashPair(node, sibling);
+            else
+                node = hashPair(sibling, node);
+            index /= 2;
+        }
+        return Arrays.equals(node, root);
+    }
+
+    /** @return the parent of {@code left} and {@code right} */
+    public static byte[] hashPair(byte[] left, byte[] right) {
+        MessageDigest md = CryptoEngines.sha256();
+        md.update(left);
+        md.update(right);
+        return md.digest();
+    }
+
+    private static void checkLeaf(byte[] leaf) {
+        if (leaf == null)
+            throw new IllegalStateException("leaf hash is missing, the transaction is not finalized");
+    }
+
+    /** Recompute the ancestors of the leaf at {@code index} */
+    private void updatePath(int index) {
+        int l = 0;
+        while (levels.get(l).size() > 1) {
+            ArrayList<byte[]> level = levels.get(l);
+            if (l + 1 == levels.size())
+                levels.add(new ArrayList<byte[]>());
+            ArrayList<byte[]> upper = levels.get(l + 1);
+            int left = index & ~1;
+            byte[] right = left + 1 < level.size() ? level.get(left + 1) : level.get(left);
+            byte[] parent = hashPair(level.get(left), right);
+            index /= 2;
+            if (index < upper.size())
+                upper.set(index, parent);
+            else
+                upper.add(parent);
+            l++;
+        }
+    }
+}
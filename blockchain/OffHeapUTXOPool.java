@@ -0,0 +1,94 @@
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * A UTXOPool that keeps its entries in an off-heap {@code UTXOTable} instead of a HashMap, so an
+ * entry costs a fixed 49 byte slot rather than several objects on the heap. Addresses are stored
+ * by their {@code AddressRegistry} id, which is acquired for each stored output and released when it
+ * is removed. Outputs returned by {@link #getTxOutput(UTXO)} are built on each call.
+ *
+ * <p>
+ * Transaction hashes must be 32 bytes, as produced by {@code Transaction.finalize()}.
+ */
+public class OffHeapUTXOPool extends UTXOPool {
+
+    // Outputs are an inner class, so decoded ones need an enclosing transaction
+    private static final Transaction OUTPUTS = new Transaction();
+
+    private UTXOTable table;
+    private AddressRegistry registry;
+
+    /** Creates a new empty OffHeapUTXOPool */
+    public OffHeapUTXOPool() {
+        this(UTXOTable.MIN_CAPACITY);
+    }
+
+    /** Creates a new empty OffHeapUTXOPool with room for about {@code capacity} UTXOs */
+    public OffHeapUTXOPool(int capacity) {
+        table = UTXOTable.offHeap(capacity * 10 / 7 + 1);
+        registry = AddressRegistry.getShared();
+    }
+
+    /** Creates a new OffHeapUTXOPool that is a copy of {@code uPool} */
+    public OffHeapUTXOPool(UTXOPool uPool) {
+        this(0);
+        for (UTXO utxo : uPool.getAllUTXO())
+            addUTXO(utxo, uPool.getTxOutput(utxo));
+    }
+
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        AddressRegistry.Entry entry = registry.acquire(txOut.getAddressEntry());
+        // The replaced output no longer uses its address
+        int slot = find(utxo);
+        int replacedId = slot < 0 ? -1 : table.getAddressId(slot);
+        try {
+            table.put(utxo.getTxHash(), utxo.getIndex(), txOut.value, entry.id);
+        } catch (IOException e) {
+            // Not thrown by off-heap tables
+            registry.release(entry.id);
+            throw new IllegalStateException(e);
+        }
+        if (replacedId >= 0)
+            registry.release(replacedId);
+    }
+
+    public void removeUTXO(UTXO utxo) {
+        int slot = find(utxo);
+        if (slot < 0)
+            return;
+        int addressId = table.getAddressId(slot);
+        table.remove(utxo.getTxHash(), utxo.getIndex());
+        registry.release(addressId);
+    }
+
+    public Transaction.Output getTxOutput(UTXO ut) {
+        int slot = find(ut);
+        if (slot < 0)
+            return null;
+        return OUTPUTS.new Output(table.getValue(slot), registry.get(table.getAddressId(slot)));
+    }
+
+    public boolean contains(UTXO utxo) {
+        return find(utxo) >= 0;
+    }
+
+    public ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(table.size());
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            if (table.isUsed(slot))
+                allUTXO.add(new UTXO(table.getTxHash(slot), table.getIndex(slot)));
+        }
+        return allUTXO;
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return table.size();
+    }
+
+    private int find(UTXO utxo) {
+        if (utxo.getTxHash().length != UTXOTable.HASH_LENGTH)
+            return -1;
+        return table.find(utxo.getTxHash(), utxo.getIndex());
+    }
+}
@@ -0,0 +1,143 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Holds blocks whose parent has not been added yet, keyed by the missing parent hash, so that they
+ * can be added once the parent arrives instead of being requested again. The pool is capped by
+ * number of blocks and by serialized size; orphans older than the maximum age are dropped, and
+ * when a cap is exceeded the oldest orphans are evicted first.
+ */
+public class OrphanPool {
+
+    public static final int DEFAULT_MAX_BLOCKS = 256;
+    public static final long DEFAULT_MAX_BYTES = 32L << 20;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 10 * 60 * 1000;
+
+    /** A block waiting for its parent */
+    private static class Orphan {
+        final Block block;
+        final ByteArrayWrapper hash;
+        final ByteArrayWrapper prevHash;
+        final int size;
+        final long arrival;
+
+        Orphan(Block block, ByteArrayWrapper hash, ByteArrayWrapper prevHash, int size, long arrival) {
+            this.block = block;
+            this.hash = hash;
+            this.prevHash = prevHash;
+            this.size = size;
+            this.arrival = arrival;
+        }
+    }
+
+    // Block hash -> orphan, oldest first
+    private LinkedHashMap<ByteArrayWrapper, Orphan> orphans;
+    // Missing parent hash -> orphans waiting for it
+    private HashMap<ByteArrayWrapper, ArrayList<Orphan>> byParent;
+    private int maxBlocks;
+    private long maxBytes;
+    private long maxAgeMillis;
+    private long totalBytes;
+
+    public OrphanPool() {
+        this(DEFAULT_MAX_BLOCKS, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * Creates a pool holding at most {@code maxBlocks} orphans of {@code maxBytes} bytes in total,
+     * each for at most {@code maxAgeMillis} milliseconds
+     */
+    public OrphanPool(int maxBlocks, long maxBytes, long maxAgeMillis) {
+        orphans = new LinkedHashMap<ByteArrayWrapper, Orphan>();
+        byParent = new HashMap<ByteArrayWrapper, ArrayList<Orphan>>();
+        this.maxBlocks = maxBlocks;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Keep {@code block}, whose parent is unknown, until the parent is added
+     *
+     * @return false if the block does not fit into the pool at all
+     */
+    public boolean addOrphan(Block block) {
+        ByteArrayWrapper hash = new ByteArrayWrapper(block.getHash());
+        if (orphans.containsKey(hash))
+            return true;
+        long now = System.currentTimeMillis();
+        evictExpired(now);
+        int size = block.getRawBlockSize();
+        if (maxBlocks <= 0 || size > maxBytes)
+            return false;
+        Orphan orphan = new Orphan(block, hash, new ByteArrayWrapper(block.getPrevBlockHash()), size, now);
+        orphans.put(hash, orphan);
+        ArrayList<Orphan> siblings = byParent.get(orphan.prevHash);
+        if (siblings == null) {
+            siblings = new ArrayList<Orphan>();
+            byParent.put(orphan.prevHash, siblings);
+        }
+        siblings.add(orphan);
+        totalBytes += size;
+        while (orphans.size() > maxBlocks || totalBytes > maxBytes)
+            remove(orphans.values().iterator().next());
+        return true;
+    }
+
+    /** @return the orphans whose parent is the block with hash {@code prevHash}, which are removed from the pool */
+    public ArrayList<Block> removeChildren(ByteArrayWrapper prevHash) {
+        ArrayList<Block> children = new ArrayList<Block>();
+        ArrayList<Orphan> waiting = byParent.get(prevHash);
+        if (waiting == null)
+            return children;
+        long now = System.currentTimeMillis();
+        for (Orphan orphan : new ArrayList<Orphan>(waiting)) {
+            remove(orphan);
+            if (now - orphan.arrival <= maxAgeMillis)
+                children.add(orphan.block);
+        }
+        return children;
+    }
+
+    /** @return true if the block with hash {@code hash} is kept as an orphan */
+    public boolean contains(byte[] hash) {
+        return orphans.containsKey(ByteArrayWrapper.wrap(hash));
+    }
+
+    /** @return the number of orphans */
+    public int size() {
+        return orphans.size();
+    }
+
+    /** @return the serialized size of all orphans */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /** Drop the orphans that have waited longer than the maximum age, they are the oldest */
+    private void evictExpired(long now) {
+        Iterator<Orphan> it = orphans.values().iterator();
+        while (it.hasNext()) {
+            Orphan orphan = it.next();
+            if (now - orphan.arrival <= maxAgeMillis)
+                break;
+            it.remove();
+            unlink(orphan);
+        }
+    }
+
+    private void remove(Orphan orphan) {
+        orphans.remove(orphan.hash);
+        unlink(orphan);
+    }
+
+    /** Remove {@code orphan} from its parent's list and the size total */
+    private void unlink(Orphan orphan) {
+        ArrayList<Orphan> siblings = byParent.get(orphan.prevHash);
+        siblings.remove(orphan);
+        if (siblings.isEmpty())
+            byParent.remove(orphan.prevHash);
+        totalBytes -= orphan.size;
+    }
+}
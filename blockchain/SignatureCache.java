@@ -0,0 +1,105 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread safe cache of signatures that have been verified successfully, so that a
+ * signature checked for the transaction pool or on one fork is not checked again. Entries are
+ * keyed by a digest of (message, public key, signature) and evicted in LRU order.
+ */
+public class SignatureCache {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    // Each segment has its own lock so that parallel verifiers rarely contend
+    private static final int SEGMENTS = 16;
+
+    private static final SignatureCache shared = new SignatureCache(DEFAULT_CAPACITY);
+
+    private ArrayList<LinkedHashMap<ByteArrayWrapper, Boolean>> segments;
+    private AtomicLong hits;
+    private AtomicLong misses;
+
+    /** Creates a cache that holds at most {@code capacity} signatures */
+    public SignatureCache(int capacity) {
+        final int segmentCapacity = Math.max(1, capacity / SEGMENTS);
+        segments = new ArrayList<LinkedHashMap<ByteArrayWrapper, Boolean>>(SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments.add(new LinkedHashMap<ByteArrayWrapper, Boolean>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, Boolean> eldest) {
+                    return size() > segmentCapacity;
+                }
+            });
+        }
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+    }
+
+    /** @return the cache consulted by {@code Crypto} and {@code BlockChain} */
+    public static SignatureCache getShared() {
+        return shared;
+    }
+
+    /** @return the cache key of a signature check, or null if any part is missing */
+    public static ByteArrayWrapper key(PublicKey pubKey, byte[] message, byte[] signature) {
+        if (pubKey == null || message == null || signature == null)
+            return null;
+        MessageDigest md = CryptoEngines.sha256();
+        byte[] encodedKey = pubKey.getEncoded();
+        // Length prefixes keep different splits of the same bytes apart
+        md.update(ByteBuffer.allocate(8).putInt(message.length).putInt(encodedKey.length).array());
+        md.update(message);
+        md.update(encodedKey);
+        md.update(signature);
+        return ByteArrayWrapper.wrap(md.digest());
+    }
+
+    private LinkedHashMap<ByteArrayWrapper, Boolean> segment(ByteArrayWrapper key) {
+        return segments.get((key.hashCode() & 0x7fffffff) % SEGMENTS);
+    }
+
+    /** @return true if the signature with cache key {@code key} has been verified before */
+    public boolean contains(ByteArrayWrapper key) {
+        LinkedHashMap<ByteArrayWrapper, Boolean> segment = segment(key);
+        boolean found;
+        synchronized (segment) {
+            found = segment.get(key) != null;
+        }
+        if (found)
+            hits.incrementAndGet();
+        else
+            misses.incrementAndGet();
+        return found;
+    }
+
+    /** Remember that the signature with cache key {@code key} is valid */
+    public void add(ByteArrayWrapper key) {
+        LinkedHashMap<ByteArrayWrapper, Boolean> segment = segment(key);
+        synchronized (segment) {
+            segment.put(key, Boolean.TRUE);
+        }
+    }
+
+    /** @return the number of cached signatures */
+    public int size() {
+        int size = 0;
+        for (LinkedHashMap<ByteArrayWrapper, Boolean> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
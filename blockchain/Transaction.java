@@ -1,9 +1,7 @@
 
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -73,12 +71,38 @@ public class Transaction {
         public double value;
         /** the address or public key of the recipient */
         public PublicKey address;
+        /** the encoded address, computed on first use and again if {@code address} is reassigned */
+        private volatile AddressRegistry.Entry entry;
+        // The address entry was looked up for, an equal key may have been encoded first
+        private volatile PublicKey entryAddress;
 
         public Output(double v, PublicKey addr) {
             value = v;
             address = addr;
         }
 
+        /** Creates an output whose address is already encoded, e.g. read from a UTXO table */
+        Output(double v, AddressRegistry.Entry entry) {
+            value = v;
+            address = entry.key;
+            this.entry = entry;
+            entryAddress = entry.key;
+        }
+
+        /** @return the encoding of {@code address} */
+        public AddressRegistry.Entry getAddressEntry() {
+            PublicKey addr = address;
+            // Read before the entry, which is written before it
+            PublicKey encoded = entryAddress;
+            AddressRegistry.Entry e = entry;
+            if (e == null || encoded != addr) {
+                e = AddressRegistry.encode(addr);
+                entry = e;
+                entryAddress = addr;
+            }
+            return e;
+        }
+
         public boolean equals(Object other) {
             if (other == null) {
                 return false;
@@ -91,29 +115,53 @@ public class Transaction {
 
             if (value != op.value)
                 return false;
-            if (!((RSAPublicKey) address).getPublicExponent().equals(
-                    ((RSAPublicKey) op.address).getPublicExponent()))
-                return false;
-            if (!((RSAPublicKey) address).getModulus().equals(
-                    ((RSAPublicKey) op.address).getModulus()))
-                return false;
-            return true;
+            AddressRegistry.Entry e1 = getAddressEntry();
+            AddressRegistry.Entry e2 = op.getAddressEntry();
+            // Keys are equal if they have the same exponent and modulus
+            return e1 == e2 || (e1.hash == e2.hash && Arrays.equals(e1.raw, e2.raw));
         }
 
         public int hashCode() {
             int hash = 1;
             hash = hash * 17 + (int) value * 10000;
-            hash = hash * 31 + ((RSAPublicKey) address).getPublicExponent().hashCode();
-            hash = hash * 31 + ((RSAPublicKey) address).getModulus().hashCode();
+            hash = hash * 31 * 31 + getAddressEntry().hash;
             return hash;
         }
     }
 
+    /** the serialized outputs together with the output values and addresses they were built from */
+    private static class RawOutputs {
+        final double[] values;
+        final PublicKey[] addresses;
+        final byte[] bytes;
+
+        RawOutputs(double[] values, PublicKey[] addresses, byte[] bytes) {
+            this.values = values;
+            this.addresses = addresses;
+            this.bytes = bytes;
+        }
+    }
+
+    /** hashCode() of a finalized transaction together with the tx hash it belongs to */
+    private static class CachedHashCode {
+        final byte[] txHash;
+        final int value;
+
+        CachedHashCode(byte[] txHash, int value) {
+            this.txHash = txHash;
+            this.value = value;
+        }
+    }
+
     /** hash of the transaction, its unique id */
     private byte[] hash;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
     private boolean coinbase;
+    /** outputs section shared by the data to sign of every input, null until needed */
+    private volatile RawOutputs rawOutputs;
+    /** null until hashCode() is called on the finalized transaction */
+    private volatile CachedHashCode cachedHashCode;
 
     public Transaction() {
         inputs = new ArrayList<Input>();
@@ -144,15 +192,20 @@ public class Transaction {
     public void addInput(byte[] prevTxHash, int outputIndex) {
         Input in = new Input(prevTxHash, outputIndex);
         inputs.add(in);
+        rawOutputs = null;
+        cachedHashCode = null;
     }
 
     public void addOutput(double value, PublicKey address) {
         Output op = new Output(value, address);
         outputs.add(op);
+        rawOutputs = null;
+        cachedHashCode = null;
     }
 
     public void removeInput(int index) {
         inputs.remove(index);
+        cachedHashCode = null;
     }
 
     public void removeInput(UTXO ut) {
@@ -161,6 +214,7 @@ public class Transaction {
             UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
             if (u.equals(ut)) {
                 inputs.remove(i);
+                cachedHashCode = null;
                 return;
             }
         }
@@ -168,88 +222,110 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
         Input in = inputs.get(index);
         byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
+        int size = Integer.SIZE / 8 + getRawOutputsSize();
         if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                sigData.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                sigData.add(addressModulus[i]);
+            size += prevTxHash.length;
+        ByteBuffer sigData = ByteBuffer.allocate(size);
+        if (prevTxHash != null)
+            sigData.put(prevTxHash);
+        sigData.putInt(in.outputIndex);
+        writeRawOutputs(sigData);
+        return sigData.array();
+    }
+
+    /** @return the length of the serialized outputs */
+    public int getRawOutputsSize() {
+        return getRawOutputs().length;
+    }
+
+    /** Write the serialized outputs to {@code buf} */
+    public void writeRawOutputs(ByteBuffer buf) {
+        buf.put(getRawOutputs());
+    }
+
+    /**
+     * @return the serialized outputs. They are serialized once and reused by every input, as
+     *         long as no output value or address has changed since.
+     */
+    private byte[] getRawOutputs() {
+        RawOutputs cached = rawOutputs;
+        if (cached != null && cached.values.length == outputs.size()) {
+            boolean unchanged = true;
+            for (int i = 0; i < outputs.size() && unchanged; i++) {
+                Output op = outputs.get(i);
+                unchanged = cached.values[i] == op.value && cached.addresses[i] == op.address;
+            }
+            if (unchanged)
+                return cached.bytes;
         }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+        int n = outputs.size();
+        double[] values = new double[n];
+        PublicKey[] addresses = new PublicKey[n];
+        byte[][] raw = new byte[n][];
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            Output op = outputs.get(i);
+            values[i] = op.value;
+            addresses[i] = op.address;
+            // Exponent and modulus bytes are cached by the address registry
+            raw[i] = op.getAddressEntry().raw;
+            size += Double.SIZE / 8 + raw[i].length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (int i = 0; i < n; i++) {
+            buf.putDouble(values[i]);
+            buf.put(raw[i]);
+        }
+        byte[] bytes = buf.array();
+        rawOutputs = new RawOutputs(values, addresses, bytes);
+        return bytes;
     }
 
     public void addSignature(byte[] signature, int index) {
         inputs.get(index).addSignature(signature);
+        cachedHashCode = null;
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        ByteBuffer rawTx = ByteBuffer.allocate(getRawTxSize());
+        writeRawTx(rawTx);
+        return rawTx.array();
+    }
+
+    /** @return the length of {@link #getRawTx()} */
+    public int getRawTxSize() {
+        int size = 0;
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+            size += Integer.SIZE / 8;
+            if (in.prevTxHash != null)
+                size += in.prevTxHash.length;
+            if (in.signature != null)
+                size += in.signature.length;
         }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                rawTx.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                rawTx.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                rawTx.add(addressModulus[i]);
+        return size + getRawOutputsSize();
+    }
+
+    /** Write the bytes of {@link #getRawTx()} to {@code buf} */
+    public void writeRawTx(ByteBuffer buf) {
+        for (Input in : inputs) {
+            if (in.prevTxHash != null)
+                buf.put(in.prevTxHash);
+            buf.putInt(in.outputIndex);
+            if (in.signature != null)
+                buf.put(in.signature);
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        writeRawOutputs(buf);
     }
 
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        // Reuses this thread's SHA-256 engine
+        MessageDigest md = CryptoEngines.sha256();
+        md.update(getRawTx());
+        hash = md.digest();
     }
 
     public void setHash(byte[] h) {
@@ -319,6 +395,11 @@ public class Transaction {
     }
 
     public int hashCode() {
+        // A finalized transaction keeps its hash code until it is changed and finalized again
+        CachedHashCode cached = cachedHashCode;
+        byte[] txHash = hash;
+        if (cached != null && txHash != null && cached.txHash == txHash)
+            return cached.value;
         int hash = 1;
         for (int i = 0; i < numInputs(); i++) {
             hash = hash * 31 + getInput(i).hashCode();
@@ -326,6 +407,8 @@ public class Transaction {
         for (int i = 0; i < numOutputs(); i++) {
             hash = hash * 31 + getOutput(i).hashCode();
         }
+        if (txHash != null)
+            cachedHashCode = new CachedHashCode(txHash, hash);
         return hash;
     }
 }
@@ -1,38 +1,308 @@
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
-public class TransactionPool {
+/**
+ * The pool of unconfirmed transactions, ordered by fee rate (fee per serialized byte). The total
+ * serialized size is capped; when it is exceeded the transactions with the lowest fee rate are
+ * evicted first, together with the pooled transactions spending their outputs.
+ *
+ * <p>
+ * No two pooled transactions spend the same output. A transaction that conflicts with pooled ones
+ * is rejected, or replaces them under REPLACE_BY_FEE if it pays more than they and their
+ * descendants together.
+ */
+public class TransactionPool implements Iterable<Transaction> {
 
-    private HashMap<ByteArrayWrapper, Transaction> H;
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    /** How a transaction spending the same output as a pooled one is handled */
+    public enum ConflictPolicy {
+        // Keep the pooled transactions
+        FIRST_SEEN,
+        // Replace them if the new transaction pays a higher total fee
+        REPLACE_BY_FEE
+    }
+
+    /** A pooled transaction with its fee */
+    private static class Entry {
+        final Transaction tx;
+        final ByteArrayWrapper hash;
+        final double fee;
+        final int size;
+        final double feeRate;
+        // Insertion order, breaks ties between equal fee rates
+        final long seq;
+
+        Entry(Transaction tx, ByteArrayWrapper hash, double fee, int size, long seq) {
+            this.tx = tx;
+            this.hash = hash;
+            this.fee = fee;
+            this.size = size;
+            this.feeRate = fee / Math.max(1, size);
+            this.seq = seq;
+        }
+    }
+
+    // Highest fee rate first, older first among equal fee rates
+    private static final Comparator<Entry> BY_FEE_RATE = new Comparator<Entry>() {
+        public int compare(Entry e1, Entry e2) {
+            int c = Double.compare(e2.feeRate, e1.feeRate);
+            if (c != 0)
+                return c;
+            return Long.compare(e1.seq, e2.seq);
+        }
+    };
+
+    private HashMap<ByteArrayWrapper, Entry> H;
+    private TreeSet<Entry> byFeeRate;
+    // Insertion sequence number -> entry, oldest first
+    private TreeMap<Long, Entry> bySeq;
+    // Spent output -> the pooled transaction spending it
+    private HashMap<UTXO, Entry> spends;
+    private ConflictPolicy policy;
+    private long maxBytes;
+    private long totalBytes;
+    private long nextSeq;
+    // Transactions evicted by the size cap or replaced
+    private long evictions;
+    // Transactions removed for any reason, including inclusion in a block
+    private long removals;
 
     public TransactionPool() {
-        H = new HashMap<ByteArrayWrapper, Transaction>();
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /** Creates a pool holding at most {@code maxBytes} bytes of serialized transactions */
+    public TransactionPool(long maxBytes) {
+        H = new HashMap<ByteArrayWrapper, Entry>();
+        byFeeRate = new TreeSet<Entry>(BY_FEE_RATE);
+        bySeq = new TreeMap<Long, Entry>();
+        spends = new HashMap<UTXO, Entry>();
+        policy = ConflictPolicy.FIRST_SEEN;
+        this.maxBytes = maxBytes;
     }
 
     public TransactionPool(TransactionPool txPool) {
-        H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+        H = new HashMap<ByteArrayWrapper, Entry>(txPool.H);
+        byFeeRate = new TreeSet<Entry>(txPool.byFeeRate);
+        bySeq = new TreeMap<Long, Entry>(txPool.bySeq);
+        spends = new HashMap<UTXO, Entry>(txPool.spends);
+        policy = txPool.policy;
+        maxBytes = txPool.maxBytes;
+        totalBytes = txPool.totalBytes;
+        nextSeq = txPool.nextSeq;
+        evictions = txPool.evictions;
+        removals = txPool.removals;
     }
 
-    public void addTransaction(Transaction tx) {
+    /** Set how conflicting transactions are handled, FIRST_SEEN by default */
+    public void setConflictPolicy(ConflictPolicy policy) {
+        this.policy = policy;
+    }
+
+    public ConflictPolicy getConflictPolicy() {
+        return policy;
+    }
+
+    /** Add {@code tx} without a known fee, so it is the first to be evicted */
+    public boolean addTransaction(Transaction tx) {
+        return addTransaction(tx, 0);
+    }
+
+    /**
+     * Add {@code tx} paying {@code fee}, evicting the lowest fee rate transactions if the pool is
+     * full. The pool does not check transactions, {@code tx} must have been validated by the
+     * caller as {@code BlockChain.addTransaction} does.
+     *
+     * @return true if {@code tx} is in the pool afterwards, false if it lost a conflict or was
+     *         evicted right away
+     */
+    public boolean addTransaction(Transaction tx, double fee) {
         ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
-        H.put(hash, tx);
+        removeEntry(H.get(hash));
+        // Pooled transactions spending the same outputs
+        HashSet<Entry> conflicts = new HashSet<Entry>();
+        for (Transaction.Input in : tx.getInputs()) {
+            Entry spender = spends.get(new UTXO(in.prevTxHash, in.outputIndex));
+            if (spender != null)
+                conflicts.add(spender);
+        }
+        if (!conflicts.isEmpty()) {
+            if (policy == ConflictPolicy.FIRST_SEEN)
+                return false;
+            // Their descendants become invalid as well, so the new tx has to pay for all of them
+            ArrayList<Entry> replaced = withDescendants(conflicts);
+            double replacedFee = 0;
+            for (Entry e : replaced)
+                replacedFee += e.fee;
+            if (fee <= replacedFee)
+                return false;
+            for (Entry e : replaced)
+                removeEntry(e);
+            evictions += replaced.size();
+        }
+        Entry entry = new Entry(tx, hash, fee, tx.getRawTxSize(), nextSeq++);
+        H.put(hash, entry);
+        byFeeRate.add(entry);
+        bySeq.put(entry.seq, entry);
+        for (Transaction.Input in : tx.getInputs())
+            spends.put(new UTXO(in.prevTxHash, in.outputIndex), entry);
+        totalBytes += entry.size;
+        while (totalBytes > maxBytes) {
+            ArrayList<Entry> evicted = withDescendants(Collections.singleton(byFeeRate.last()));
+            for (Entry e : evicted)
+                removeEntry(e);
+            evictions += evicted.size();
+        }
+        return H.get(hash) == entry;
+    }
+
+    /**
+     * Remove the pooled transactions that spend an output spent by {@code tx}, e.g. a transaction
+     * just included in a block, and the pooled transactions depending on them
+     */
+    public void removeConflicts(Transaction tx) {
+        HashSet<Entry> conflicts = new HashSet<Entry>();
+        for (Transaction.Input in : tx.getInputs()) {
+            Entry spender = spends.get(new UTXO(in.prevTxHash, in.outputIndex));
+            if (spender != null && !Arrays.equals(spender.tx.getHash(), tx.getHash()))
+                conflicts.add(spender);
+        }
+        for (Entry e : withDescendants(conflicts))
+            removeEntry(e);
+    }
+
+    /** @return the pooled transaction spending {@code utxo}, or null if there is none */
+    public Transaction getSpender(UTXO utxo) {
+        Entry entry = spends.get(utxo);
+        return entry == null ? null : entry.tx;
     }
 
     public void removeTransaction(byte[] txHash) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+        ByteArrayWrapper hash = ByteArrayWrapper.wrap(txHash);
+        removeEntry(H.get(hash));
     }
 
     public Transaction getTransaction(byte[] txHash) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        return H.get(hash);
+        ByteArrayWrapper hash = ByteArrayWrapper.wrap(txHash);
+        Entry entry = H.get(hash);
+        return entry == null ? null : entry.tx;
+    }
+
+    /** @return the fee recorded for the transaction with hash {@code txHash}, or -1 if it is not pooled */
+    public double getFee(byte[] txHash) {
+        Entry entry = H.get(ByteArrayWrapper.wrap(txHash));
+        return entry == null ? -1 : entry.fee;
     }
 
+    /** @return all transactions, highest fee rate first */
     public ArrayList<Transaction> getTransactions() {
-        ArrayList<Transaction> T = new ArrayList<Transaction>();
-        for (Transaction tx : H.values())
-            T.add(tx);
+        ArrayList<Transaction> T = new ArrayList<Transaction>(byFeeRate.size());
+        for (Entry entry : byFeeRate)
+            T.add(entry.tx);
         return T;
     }
+
+    /**
+     * @return the pooled transactions added since {@link #getNextSeq()} returned {@code seq},
+     *         oldest first, so that parents come before the transactions spending them
+     */
+    public ArrayList<Transaction> getTransactionsSince(long seq) {
+        Collection<Entry> added = bySeq.tailMap(seq, true).values();
+        ArrayList<Transaction> T = new ArrayList<Transaction>(added.size());
+        for (Entry entry : added)
+            T.add(entry.tx);
+        return T;
+    }
+
+    /** @return the sequence number the next added transaction gets */
+    public long getNextSeq() {
+        return nextSeq;
+    }
+
+    /** @return the {@code n} transactions with the highest fee rate, highest first */
+    public ArrayList<Transaction> getTopTransactions(int n) {
+        ArrayList<Transaction> T = new ArrayList<Transaction>(Math.min(n, byFeeRate.size()));
+        Iterator<Transaction> it = iterator();
+        while (T.size() < n && it.hasNext())
+            T.add(it.next());
+        return T;
+    }
+
+    /** @return an iterator over the pooled transactions, highest fee rate first, without copying them */
+    public Iterator<Transaction> iterator() {
+        final Iterator<Entry> entries = byFeeRate.iterator();
+        return new Iterator<Transaction>() {
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            public Transaction next() {
+                return entries.next().tx;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /** @return the number of pooled transactions */
+    public int size() {
+        return H.size();
+    }
+
+    /** @return the serialized size of all pooled transactions */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /** @return the number of transactions evicted by the size cap or replaced by fee so far */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /** @return the number of transactions removed from the pool so far, for whatever reason */
+    public long getRemovals() {
+        return removals;
+    }
+
+    /** @return {@code entries} and every pooled transaction spending their outputs, directly or not */
+    private ArrayList<Entry> withDescendants(Collection<Entry> entries) {
+        ArrayList<Entry> result = new ArrayList<Entry>(entries);
+        HashSet<Entry> seen = new HashSet<Entry>(entries);
+        for (int i = 0; i < result.size(); i++) {
+            Transaction tx = result.get(i).tx;
+            for (int j = 0; j < tx.numOutputs(); j++) {
+                Entry spender = spends.get(new UTXO(tx.getHash(), j));
+                if (spender != null && seen.add(spender))
+                    result.add(spender);
+            }
+        }
+        return result;
+    }
+
+    private void removeEntry(Entry entry) {
+        if (entry == null)
+            return;
+        H.remove(entry.hash);
+        byFeeRate.remove(entry);
+        bySeq.remove(entry.seq);
+        for (Transaction.Input in : entry.tx.getInputs()) {
+            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+            if (spends.get(utxo) == entry)
+                spends.remove(utxo);
+        }
+        totalBytes -= entry.size;
+        removals++;
+    }
 }
@@ -1,7 +1,6 @@
 import java.util.HashSet;
 import java.util.Arrays;
 import java.util.ArrayList;
-import java.util.Iterator;
 
 public class TxHandler {
 
@@ -134,26 +133,15 @@ public class TxHandler {
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         // IMPLEMENT THIS
         ArrayList<Transaction> validTx = new ArrayList<Transaction>();
-        // Keep track of unresolved txs
-        HashSet<Transaction> txs = new HashSet<Transaction>();
-        for (int i = 0; i < possibleTxs.length; i++) {
-            txs.add(possibleTxs[i]);
-        }
-        int tmpSize = txs.size();
-        int newSize = tmpSize;
-        do {
-            tmpSize = newSize;
-            // Iterate unresolved txs
-            for (Iterator<Transaction> i = txs.iterator(); i.hasNext();) {
-                Transaction tx = i.next();
-                if (isValidTx(tx)) {
-                    validTx.add(tx);
-                    handleValidTx(tx);
-                    i.remove();
-                }
+        // Parents come before the txs spending them, so a single pass is enough
+        ArrayList<Transaction> txs = TxOrder.topological(Arrays.asList(possibleTxs));
+        for (int i = 0; i < txs.size(); i++) {
+            Transaction tx = txs.get(i);
+            if (isValidTx(tx)) {
+                validTx.add(tx);
+                handleValidTx(tx);
             }
-            newSize = txs.size();
-        } while (tmpSize != newSize);
+        }
         
         return validTx.toArray(new Transaction[validTx.size()]);
     }
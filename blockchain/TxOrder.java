@@ -0,0 +1,66 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/** Orders transactions along the in-set dependencies given by their inputs' {@code prevTxHash} */
+public class TxOrder {
+
+    /**
+     * @return the distinct transactions of {@code txs} ordered so that every transaction comes
+     *         after all transactions of {@code txs} whose outputs it spends. Independent
+     *         transactions keep their original order.
+     */
+    public static ArrayList<Transaction> topological(List<Transaction> txs) {
+        // Tx hash -> position in nodes
+        HashMap<ByteArrayWrapper, Integer> index = new HashMap<ByteArrayWrapper, Integer>();
+        ArrayList<Transaction> nodes = new ArrayList<Transaction>();
+        for (Transaction tx : txs) {
+            ByteArrayWrapper hash = ByteArrayWrapper.wrap(tx.getHash());
+            if (!index.containsKey(hash)) {
+                index.put(hash, nodes.size());
+                nodes.add(tx);
+            }
+        }
+        int n = nodes.size();
+        // Number of unordered parents of each tx, and the txs spending each tx
+        int[] pending = new int[n];
+        ArrayList<ArrayList<Integer>> dependents = new ArrayList<ArrayList<Integer>>(n);
+        for (int i = 0; i < n; i++)
+            dependents.add(new ArrayList<Integer>());
+        for (int i = 0; i < n; i++) {
+            for (Transaction.Input in : nodes.get(i).getInputs()) {
+                if (in.prevTxHash == null)
+                    continue;
+                Integer parent = index.get(ByteArrayWrapper.wrap(in.prevTxHash));
+                if (parent != null && parent != i) {
+                    pending[i]++;
+                    dependents.get(parent).add(i);
+                }
+            }
+        }
+
+        ArrayList<Transaction> ordered = new ArrayList<Transaction>(n);
+        ArrayDeque<Integer> ready = new ArrayDeque<Integer>();
+        for (int i = 0; i < n; i++) {
+            if (pending[i] == 0)
+                ready.add(i);
+        }
+        while (!ready.isEmpty()) {
+            int i = ready.poll();
+            ordered.add(nodes.get(i));
+            for (int child : dependents.get(i)) {
+                if (--pending[child] == 0)
+                    ready.add(child);
+            }
+        }
+        if (ordered.size() < n) {
+            // Only possible with a hash cycle, such txs can never be valid
+            for (int i = 0; i < n; i++) {
+                if (pending[i] > 0)
+                    ordered.add(nodes.get(i));
+            }
+        }
+        return ordered;
+    }
+}
@@ -8,6 +8,9 @@ public class UTXO implements Comparable<UTXO> {
     /** Index of the corresponding output in said transaction */
     private int index;
 
+    /** hashCode(), computed once since the UTXO does not change */
+    private int hash;
+
     /**
      * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
      * hash is {@code txHash}
@@ -15,6 +18,7 @@ public class UTXO implements Comparable<UTXO> {
     public UTXO(byte[] txHash, int index) {
         this.txHash = Arrays.copyOf(txHash, txHash.length);
         this.index = index;
+        this.hash = 17 * 31 + index * 31 + Arrays.hashCode(this.txHash);
     }
 
     /** @return the transaction hash of this UTXO */
@@ -40,6 +44,8 @@ public class UTXO implements Comparable<UTXO> {
         }
 
         UTXO utxo = (UTXO) other;
+        if (this.hash != utxo.hash)
+            return false;
         byte[] hash = utxo.txHash;
         int in = utxo.index;
         if (hash.length != txHash.length || index != in)
@@ -56,9 +62,6 @@ public class UTXO implements Comparable<UTXO> {
      * utxo1.equals(utxo2) => utxo1.hashCode() == utxo2.hashCode())
      */
     public int hashCode() {
-        int hash = 1;
-        hash = hash * 17 + index;
-        hash = hash * 31 + Arrays.hashCode(txHash);
         return hash;
     }
 
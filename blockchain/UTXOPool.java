@@ -1,14 +1,27 @@
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
 
 public class UTXOPool {
 
+    /** Overlay chains deeper than this are flattened into a single map */
+    public static final int MAX_OVERLAY_DEPTH = 16;
+
     /**
      * The current collection of UTXOs, with each one mapped to its corresponding transaction output
      */
     private HashMap<UTXO, Transaction.Output> H;
 
+    /** UTXOs of {@code parent} that have been removed from this pool, null for a flat pool */
+    private HashSet<UTXO> spent;
+
+    /** The pool this one is layered on, null for a flat pool */
+    private UTXOPool parent;
+
+    /** Number of pools below this one in the overlay chain */
+    private int depth;
+
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
         H = new HashMap<UTXO, Transaction.Output>();
@@ -16,17 +29,43 @@ public class UTXOPool {
 
     /** Creates a new UTXOPool that is a copy of {@code uPool} */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        if (uPool.parent == null && uPool.getClass() == UTXOPool.class) {
+            H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        } else {
+            H = new HashMap<UTXO, Transaction.Output>();
+            for (UTXO ut : uPool.getAllUTXO())
+                H.put(ut, uPool.getTxOutput(ut));
+        }
+    }
+
+    /**
+     * Creates a new UTXOPool on top of {@code parent} that shares all of its entries and only
+     * stores its own additions and removals. {@code parent} must not be modified afterwards.
+     */
+    public static UTXOPool overlay(UTXOPool parent) {
+        if (parent.depth >= MAX_OVERLAY_DEPTH) {
+            // Lookups walk the whole chain, so flatten it once in a while
+            return new UTXOPool(parent);
+        }
+        UTXOPool pool = new UTXOPool();
+        pool.parent = parent;
+        pool.spent = new HashSet<UTXO>();
+        pool.depth = parent.depth + 1;
+        return pool;
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
         H.put(utxo, txOut);
+        if (spent != null)
+            spent.remove(utxo);
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
         H.remove(utxo);
+        if (parent != null && parent.contains(utxo))
+            spent.add(utxo);
     }
 
     /**
@@ -34,18 +73,33 @@ public class UTXOPool {
      *         not in the pool.
      */
     public Transaction.Output getTxOutput(UTXO ut) {
-        return H.get(ut);
+        Transaction.Output txOut = H.get(ut);
+        if (txOut != null || parent == null || spent.contains(ut))
+            return txOut;
+        return parent.getTxOutput(ut);
     }
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        if (H.containsKey(utxo))
+            return true;
+        return parent != null && !spent.contains(utxo) && parent.contains(utxo);
+    }
+
+    /** Persists changes buffered by pools backed by storage, nothing to do for in-memory pools */
+    public void flush() {
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
         ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
+        if (parent != null) {
+            for (UTXO ut : parent.getAllUTXO()) {
+                if (!spent.contains(ut) && !H.containsKey(ut))
+                    allUTXO.add(ut);
+            }
+        }
+        Set<UTXO> setUTXO = H.keySet();
         for (UTXO ut : setUTXO) {
             allUTXO.add(ut);
         }
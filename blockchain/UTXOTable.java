@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An open addressing hash table of UTXOs kept in a single {@code ByteBuffer}, without any per
+ * entry objects. Keys are a 32 byte transaction hash and an output index, values are the output
+ * value and an address id assigned by the owner of the table.
+ *
+ * <p>
+ * The buffer starts with a header {@code magic(int) capacity(int) size(int) used(int)} followed by
+ * {@code capacity} fixed width slots {@code state(byte) txHash(32) index(int) value(double)
+ * addressId(int)}. Removed entries leave a tombstone that is cleared when the table grows.
+ * Subclasses decide where the buffer lives by overriding {@link #allocate(int)}.
+ */
+public class UTXOTable {
+
+    public static final int HASH_LENGTH = 32;
+    public static final int HEADER_SIZE = 16;
+    public static final int SLOT_SIZE = 1 + HASH_LENGTH + 4 + 8 + 4;
+    public static final int MIN_CAPACITY = 1024;
+    // The largest table a single ByteBuffer can hold
+    public static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE;
+
+    private static final int MAGIC = 0x5554584f;
+    private static final byte EMPTY = 0;
+    private static final byte USED = 1;
+    private static final byte REMOVED = 2;
+
+    private static final int HASH_OFFSET = 1;
+    private static final int INDEX_OFFSET = HASH_OFFSET + HASH_LENGTH;
+    private static final int VALUE_OFFSET = INDEX_OFFSET + 4;
+    private static final int ADDRESS_OFFSET = VALUE_OFFSET + 8;
+
+    protected ByteBuffer slots;
+    private int capacity;
+    private int size;
+    // Used slots plus tombstones
+    private int used;
+
+    /** Creates an empty table, call {@link #init()} or {@link #load(ByteBuffer)} next */
+    protected UTXOTable() {
+    }
+
+    /** Creates an empty table in a direct buffer outside of the JVM heap */
+    public static UTXOTable offHeap(int capacity) {
+        UTXOTable table = new UTXOTable();
+        try {
+            table.init(capacity);
+        } catch (IOException e) {
+            // Not thrown by allocateDirect
+            throw new IllegalStateException(e);
+        }
+        return table;
+    }
+
+    /** Set up an empty table with room for {@code capacity} slots */
+    protected void init(int capacity) throws IOException {
+        capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+        slots = allocate(HEADER_SIZE + capacity * SLOT_SIZE);
+        this.capacity = capacity;
+        size = 0;
+        used = 0;
+        writeHeader();
+    }
+
+    /** Use {@code buf}, which holds a table written earlier, as this table */
+    protected void load(ByteBuffer buf) throws IOException {
+        if (buf.getInt(0) != MAGIC)
+            throw new IOException("not a UTXO table");
+        slots = buf;
+        capacity = buf.getInt(4);
+        size = buf.getInt(8);
+        used = buf.getInt(12);
+    }
+
+    /** @return a zeroed buffer of {@code bytes} bytes for the table */
+    protected ByteBuffer allocate(int bytes) throws IOException {
+        return ByteBuffer.allocateDirect(bytes);
+    }
+
+    /** Called after the table has moved from {@code old} to the new {@code slots} buffer */
+    protected void replaced(ByteBuffer old) throws IOException {
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /** @return the slot holding the UTXO, or -1 if it is not in the table */
+    public int find(byte[] txHash, int index) {
+        checkHash(txHash);
+        int mask = capacity - 1;
+        for (int slot = hash(txHash, index) & mask;; slot = (slot + 1) & mask) {
+            byte state = slots.get(offset(slot));
+            if (state == EMPTY)
+                return -1;
+            if (state == USED && matches(slot, txHash, index))
+                return slot;
+        }
+    }
+
+    /** Add the UTXO or replace its value */
+    public void put(byte[] txHash, int index, double value, int addressId) throws IOException {
+        checkHash(txHash);
+        if ((used + 1) * 10L > capacity * 7L)
+            resize(size * 2 >= capacity ? capacity * 2 : capacity);
+        int mask = capacity - 1;
+        int free = -1;
+        int slot = hash(txHash, index) & mask;
+        for (;; slot = (slot + 1) & mask) {
+            byte state = slots.get(offset(slot));
+            if (state == EMPTY)
+                break;
+            if (state == REMOVED) {
+                if (free < 0)
+                    free = slot;
+            } else if (matches(slot, txHash, index)) {
+                writeValue(slot, value, addressId);
+                return;
+            }
+        }
+        if (free >= 0) {
+            slot = free;
+        } else {
+            used++;
+        }
+        int o = offset(slot);
+        slots.put(o, USED);
+        for (int i = 0; i < HASH_LENGTH; i++)
+            slots.put(o + HASH_OFFSET + i, txHash[i]);
+        slots.putInt(o + INDEX_OFFSET, index);
+        writeValue(slot, value, addressId);
+        size++;
+        writeHeader();
+    }
+
+    /** Remove the UTXO if it is in the table */
+    public void remove(byte[] txHash, int index) {
+        int slot = find(txHash, index);
+        if (slot < 0)
+            return;
+        slots.put(offset(slot), REMOVED);
+        size--;
+        writeHeader();
+    }
+
+    /** @return true if {@code slot} holds an entry */
+    public boolean isUsed(int slot) {
+        return slots.get(offset(slot)) == USED;
+    }
+
+    public byte[] getTxHash(int slot) {
+        byte[] txHash = new byte[HASH_LENGTH];
+        int o = offset(slot) + HASH_OFFSET;
+        for (int i = 0; i < HASH_LENGTH; i++)
+            txHash[i] = slots.get(o + i);
+        return txHash;
+    }
+
+    public int getIndex(int slot) {
+        return slots.getInt(offset(slot) + INDEX_OFFSET);
+    }
+
+    public double getValue(int slot) {
+        return slots.getDouble(offset(slot) + VALUE_OFFSET);
+    }
+
+    public int getAddressId(int slot) {
+        return slots.getInt(offset(slot) + ADDRESS_OFFSET);
+    }
+
+    private void writeValue(int slot, double value, int addressId) {
+        slots.putDouble(offset(slot) + VALUE_OFFSET, value);
+        slots.putInt(offset(slot) + ADDRESS_OFFSET, addressId);
+    }
+
+    private void writeHeader() {
+        slots.putInt(0, MAGIC);
+        slots.putInt(4, capacity);
+        slots.putInt(8, size);
+        slots.putInt(12, used);
+    }
+
+    /** Move all entries into a new buffer of {@code newCapacity} slots, dropping tombstones */
+    private void resize(int newCapacity) throws IOException {
+        if (newCapacity > MAX_CAPACITY)
+            throw new IllegalStateException("UTXO table is full");
+        ByteBuffer old = slots;
+        int oldCapacity = capacity;
+        init(newCapacity);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            int o = HEADER_SIZE + slot * SLOT_SIZE;
+            if (old.get(o) != USED)
+                continue;
+            byte[] txHash = new byte[HASH_LENGTH];
+            for (int i = 0; i < HASH_LENGTH; i++)
+                txHash[i] = old.get(o + HASH_OFFSET + i);
+            put(txHash, old.getInt(o + INDEX_OFFSET), old.getDouble(o + VALUE_OFFSET),
+                    old.getInt(o + ADDRESS_OFFSET));
+        }
+        replaced(old);
+    }
+
+    private boolean matches(int slot, byte[] txHash, int index) {
+        int o = offset(slot);
+        if (slots.getInt(o + INDEX_OFFSET) != index)
+            return false;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            if (slots.get(o + HASH_OFFSET + i) != txHash[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /** The tx hash is a SHA-256 digest, so its first bytes are already well mixed */
+    private static int hash(byte[] txHash, int index) {
+        int h = ((txHash[0] & 0xff) << 24) | ((txHash[1] & 0xff) << 16)
+                | ((txHash[2] & 0xff) << 8) | (txHash[3] & 0xff);
+        return h ^ (index * 0x9e3779b9);
+    }
+
+    private static void checkHash(byte[] txHash) {
+        if (txHash.length != HASH_LENGTH)
+            throw new IllegalArgumentException("UTXO tx hash must be " + HASH_LENGTH + " bytes");
+    }
+}
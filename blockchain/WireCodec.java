@@ -0,0 +1,420 @@
+import java.nio.ByteBuffer;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Versioned binary encoding of blocks and transactions. All integers are big endian and every
+ * byte string is prefixed by its length as an int, -1 standing for null.
+ *
+ * <pre>
+ * message     := version(byte) type(byte) body
+ * block body  := flags(byte) hash prevBlockHash coinbaseAddress txCount(int) (txLength(int) tx)*
+ * tx body     := flags(byte) hash inputCount(int) input* outputCount(int) output*
+ * input       := prevTxHash outputIndex(int) signature
+ * output      := value(double) address
+ * </pre>
+ *
+ * Addresses are X.509 encoded public keys. Decoding returns views that read fields straight from
+ * the buffer; {@link BlockView#toBlock()} and {@link TxView#toTransaction()} build the objects and
+ * check the encoded hashes against recomputed ones.
+ */
+public class WireCodec {
+
+    public static final byte VERSION = 1;
+    public static final byte TYPE_BLOCK = 1;
+    public static final byte TYPE_TX = 2;
+
+    private static final byte FLAG_HEADER_HASHED = 1;
+    private static final byte FLAG_COINBASE = 1;
+
+    // Smallest encodings: two empty byte strings and an index, a value and an empty address
+    private static final int MIN_INPUT_SIZE = 12;
+    private static final int MIN_OUTPUT_SIZE = 12;
+
+    // Decoded public keys, few addresses appear in many outputs
+    private static final int KEY_CACHE_SIZE = 4096;
+    private static final LinkedHashMap<ByteArrayWrapper, PublicKey> keys =
+            new LinkedHashMap<ByteArrayWrapper, PublicKey>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, PublicKey> eldest) {
+            return size() > KEY_CACHE_SIZE;
+        }
+    };
+
+    /** @return the encoding of {@code block} */
+    public static byte[] encode(Block block) {
+        ByteBuffer buf = ByteBuffer.allocate(2 + blockBodySize(block));
+        buf.put(VERSION);
+        buf.put(TYPE_BLOCK);
+        writeBlockBody(block, buf);
+        return buf.array();
+    }
+
+    /** @return the encoding of {@code tx} */
+    public static byte[] encode(Transaction tx) {
+        ByteBuffer buf = ByteBuffer.allocate(2 + txBodySize(tx));
+        buf.put(VERSION);
+        buf.put(TYPE_TX);
+        writeTxBody(tx, buf);
+        return buf.array();
+    }
+
+    /** Read a block from {@code buf} and advance its position past it */
+    public static BlockView readBlock(ByteBuffer buf) {
+        readHeader(buf, TYPE_BLOCK);
+        int start = buf.position();
+        buf.position(start + 1);
+        skipBytes(buf);
+        skipBytes(buf);
+        skipBytes(buf);
+        int txCount = getCount(buf, buf.position(), 4);
+        buf.position(buf.position() + 4);
+        for (int i = 0; i < txCount; i++)
+            buf.position(buf.position() + 4 + buf.getInt(buf.position()));
+        ByteBuffer body = buf.duplicate();
+        body.position(start);
+        body.limit(buf.position());
+        return new BlockView(body.slice());
+    }
+
+    /** Read a transaction from {@code buf} and advance its position past it */
+    public static TxView readTransaction(ByteBuffer buf) {
+        readHeader(buf, TYPE_TX);
+        return readTxBody(buf, buf.position() + txBodyLength(buf, buf.position()));
+    }
+
+    public static Block decodeBlock(byte[] data) {
+        return readBlock(ByteBuffer.wrap(data)).toBlock();
+    }
+
+    public static Transaction decodeTransaction(byte[] data) {
+        return readTransaction(ByteBuffer.wrap(data)).toTransaction();
+    }
+
+    /** A block read lazily from its encoded body */
+    public static class BlockView {
+        private ByteBuffer body;
+        // Offsets of the fields after the flags, computed on first use
+        private int prevHashOffset = -1;
+        private int addressOffset;
+        private int txCountOffset;
+        private int[] txOffsets;
+
+        BlockView(ByteBuffer body) {
+            this.body = body;
+        }
+
+        public boolean isHeaderHashed() {
+            return (body.get(0) & FLAG_HEADER_HASHED) != 0;
+        }
+
+        public byte[] getHash() {
+            return getBytes(body, 1);
+        }
+
+        public byte[] getPrevBlockHash() {
+            index();
+            return getBytes(body, prevHashOffset);
+        }
+
+        public byte[] getCoinbaseAddress() {
+            index();
+            return getBytes(body, addressOffset);
+        }
+
+        public int numTransactions() {
+            index();
+            return body.getInt(txCountOffset);
+        }
+
+        public TxView getTransaction(int i) {
+            index();
+            int offset = txOffsets[i];
+            int length = body.getInt(offset);
+            ByteBuffer tx = body.duplicate();
+            tx.position(offset + 4);
+            tx.limit(offset + 4 + length);
+            return new TxView(tx.slice());
+        }
+
+        /** @return the decoded block, with its hash recomputed and checked */
+        public Block toBlock() {
+            Block block = new Block(getPrevBlockHash(), decodeKey(getCoinbaseAddress()));
+            for (int i = 0; i < numTransactions(); i++)
+                block.addTransaction(getTransaction(i).toTransaction());
+            if (isHeaderHashed())
+                block.finalizeHeader();
+            else
+                block.finalize();
+            checkHash(getHash(), block.getHash(), "block");
+            return block;
+        }
+
+        private void index() {
+            if (prevHashOffset >= 0)
+                return;
+            int offset = skipBytes(body, 1);
+            addressOffset = skipBytes(body, offset);
+            txCountOffset = skipBytes(body, addressOffset);
+            int[] offsets = new int[getCount(body, txCountOffset, 4)];
+            int txOffset = txCountOffset + 4;
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = txOffset;
+                txOffset += 4 + body.getInt(txOffset);
+            }
+            txOffsets = offsets;
+            prevHashOffset = offset;
+        }
+    }
+
+    /** A transaction read lazily from its encoded body */
+    public static class TxView {
+        private ByteBuffer body;
+        // Offsets of each input and output, computed on first use
+        private int[] inputOffsets;
+        private int[] outputOffsets;
+
+        TxView(ByteBuffer body) {
+            this.body = body;
+        }
+
+        public boolean isCoinbase() {
+            return (body.get(0) & FLAG_COINBASE) != 0;
+        }
+
+        public byte[] getHash() {
+            return getBytes(body, 1);
+        }
+
+        public int numInputs() {
+            index();
+            return inputOffsets.length;
+        }
+
+        public byte[] getPrevTxHash(int i) {
+            index();
+            return getBytes(body, inputOffsets[i]);
+        }
+
+        public int getOutputIndex(int i) {
+            index();
+            return body.getInt(skipBytes(body, inputOffsets[i]));
+        }
+
+        public byte[] getSignature(int i) {
+            index();
+            return getBytes(body, skipBytes(body, inputOffsets[i]) + 4);
+        }
+
+        public int numOutputs() {
+            index();
+            return outputOffsets.length;
+        }
+
+        public double getOutputValue(int i) {
+            index();
+            return body.getDouble(outputOffsets[i]);
+        }
+
+        public byte[] getOutputAddress(int i) {
+            index();
+            return getBytes(body, outputOffsets[i] + 8);
+        }
+
+        /** @return the decoded transaction, with its hash recomputed and checked */
+        public Transaction toTransaction() {
+            Transaction tx;
+            if (isCoinbase() && numInputs() == 0 && numOutputs() == 1) {
+                tx = new Transaction(getOutputValue(0), decodeKey(getOutputAddress(0)));
+            } else {
+                tx = new Transaction();
+                for (int i = 0; i < numInputs(); i++) {
+                    tx.addInput(getPrevTxHash(i), getOutputIndex(i));
+                    tx.addSignature(getSignature(i), i);
+                }
+                for (int i = 0; i < numOutputs(); i++)
+                    tx.addOutput(getOutputValue(i), decodeKey(getOutputAddress(i)));
+                tx.finalize();
+            }
+            checkHash(getHash(), tx.getHash(), "transaction");
+            return tx;
+        }
+
+        private void index() {
+            if (outputOffsets != null)
+                return;
+            int offset = skipBytes(body, 1);
+            int[] inputs = new int[getCount(body, offset, MIN_INPUT_SIZE)];
+            offset += 4;
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = offset;
+                offset = skipBytes(body, skipBytes(body, offset) + 4);
+            }
+            int[] outputs = new int[getCount(body, offset, MIN_OUTPUT_SIZE)];
+            offset += 4;
+            for (int i = 0; i < outputs.length; i++) {
+                outputs[i] = offset;
+                offset = skipBytes(body, offset + 8);
+            }
+            inputOffsets = inputs;
+            outputOffsets = outputs;
+        }
+    }
+
+    private static int blockBodySize(Block block) {
+        int size = 1 + bytesSize(block.getHash()) + bytesSize(block.getPrevBlockHash())
+                + bytesSize(block.getCoinbase().getOutput(0).address.getEncoded()) + 4;
+        for (Transaction tx : block.getTransactions())
+            size += 4 + txBodySize(tx);
+        return size;
+    }
+
+    private static void writeBlockBody(Block block, ByteBuffer buf) {
+        buf.put(block.isHeaderHashed() ? FLAG_HEADER_HASHED : 0);
+        putBytes(buf, block.getHash());
+        putBytes(buf, block.getPrevBlockHash());
+        putBytes(buf, block.getCoinbase().getOutput(0).address.getEncoded());
+        buf.putInt(block.getTransactions().size());
+        for (Transaction tx : block.getTransactions()) {
+            int lengthOffset = buf.position();
+            buf.putInt(0);
+            writeTxBody(tx, buf);
+            buf.putInt(lengthOffset, buf.position() - lengthOffset - 4);
+        }
+    }
+
+    private static int txBodySize(Transaction tx) {
+        int size = 1 + bytesSize(tx.getHash()) + 4 + 4;
+        for (Transaction.Input in : tx.getInputs())
+            size += bytesSize(in.prevTxHash) + 4 + bytesSize(in.signature);
+        for (Transaction.Output op : tx.getOutputs())
+            size += 8 + bytesSize(op.address.getEncoded());
+        return size;
+    }
+
+    private static void writeTxBody(Transaction tx, ByteBuffer buf) {
+        buf.put(tx.isCoinbase() ? FLAG_COINBASE : 0);
+        putBytes(buf, tx.getHash());
+        buf.putInt(tx.numInputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            putBytes(buf, in.prevTxHash);
+            buf.putInt(in.outputIndex);
+            putBytes(buf, in.signature);
+        }
+        buf.putInt(tx.numOutputs());
+        for (Transaction.Output op : tx.getOutputs()) {
+            buf.putDouble(op.value);
+            putBytes(buf, op.address.getEncoded());
+        }
+    }
+
+    private static void readHeader(ByteBuffer buf, byte type) {
+        byte version = buf.get();
+        if (version != VERSION)
+            throw new IllegalArgumentException("unsupported encoding version " + version);
+        byte actual = buf.get();
+        if (actual != type)
+            throw new IllegalArgumentException("expected type " + type + " but found " + actual);
+    }
+
+    /** @return the length of the tx body starting at {@code offset} */
+    private static int txBodyLength(ByteBuffer buf, int offset) {
+        int start = offset;
+        offset = skipBytes(buf, offset + 1);
+        int inputs = getCount(buf, offset, MIN_INPUT_SIZE);
+        offset += 4;
+        for (int i = 0; i < inputs; i++)
+            offset = skipBytes(buf, skipBytes(buf, offset) + 4);
+        int outputs = getCount(buf, offset, MIN_OUTPUT_SIZE);
+        offset += 4;
+        for (int i = 0; i < outputs; i++)
+            offset = skipBytes(buf, offset + 8);
+        return offset - start;
+    }
+
+    private static TxView readTxBody(ByteBuffer buf, int end) {
+        ByteBuffer body = buf.duplicate();
+        body.limit(end);
+        buf.position(end);
+        return new TxView(body.slice());
+    }
+
+    private static int bytesSize(byte[] b) {
+        return 4 + (b == null ? 0 : b.length);
+    }
+
+    private static void putBytes(ByteBuffer buf, byte[] b) {
+        if (b == null) {
+            buf.putInt(-1);
+        } else {
+            buf.putInt(b.length);
+            buf.put(b);
+        }
+    }
+
+    /** @return the byte string at {@code offset} */
+    private static byte[] getBytes(ByteBuffer buf, int offset) {
+        int length = buf.getInt(offset);
+        if (length < 0)
+            return null;
+        if (length > buf.limit() - offset - 4)
+            throw new IllegalArgumentException("byte string of " + length + " bytes is truncated");
+        byte[] b = new byte[length];
+        ByteBuffer src = buf.duplicate();
+        src.position(offset + 4);
+        src.get(b);
+        return b;
+    }
+
+    /**
+     * @return the count at {@code offset}, checked against the bytes left for its elements of at
+     *         least {@code minSize} bytes each, so that a corrupt count cannot allocate a huge array
+     */
+    private static int getCount(ByteBuffer buf, int offset, int minSize) {
+        int count = buf.getInt(offset);
+        if (count < 0 || count > (buf.limit() - offset - 4) / minSize)
+            throw new IllegalArgumentException("bad count " + count + " for " + (buf.limit() - offset - 4) + " bytes");
+        return count;
+    }
+
+    /** @return the offset right after the byte string at {@code offset} */
+    private static int skipBytes(ByteBuffer buf, int offset) {
+        return offset + 4 + Math.max(0, buf.getInt(offset));
+    }
+
+    /** Skip the byte string at the position of {@code buf} */
+    private static void skipBytes(ByteBuffer buf) {
+        buf.position(skipBytes(buf, buf.position()));
+    }
+
+    private static void checkHash(byte[] encoded, byte[] actual, String what) {
+        if (!Arrays.equals(encoded, actual))
+            throw new IllegalArgumentException(what + " hash does not match its contents");
+    }
+
+    /** @return the public key with X.509 encoding {@code encoded} */
+    public static PublicKey decodeKey(byte[] encoded) {
+        ByteArrayWrapper id = new ByteArrayWrapper(encoded);
+        synchronized (keys) {
+            PublicKey key = keys.get(id);
+            if (key != null)
+                return key;
+        }
+        try {
+            PublicKey key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+            synchronized (keys) {
+                keys.put(id, key);
+            }
+            return key;
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        } catch (InvalidKeySpecException x) {
+            throw new IllegalArgumentException("invalid address encoding", x);
+        }
+    }
+}
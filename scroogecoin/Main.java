@@ -78,6 +78,44 @@ public class Main {
         System.out.println("txHandler.isValidTx(tx2) returns: " + txHandler.isValidTx(tx2));
         System.out.println("txHandler.handleTxs(new Transaction[]{tx2}) returns: " +
             txHandler.handleTxs(new Transaction[]{tx2}).length + " transaction(s)");
+
+        /*
+         * A package [A, B] where B pays for A, then D spending B competes with X for another coin.
+         * Once A and B are accepted D only brings its own fee, so X, which pays more, is the better pick.
+         */
+        Tx coins = new Tx();
+        coins.addInput(initialHash, 1);
+        for (int i = 0; i < 3; i++)
+            coins.addOutput(200, pk_scrooge.getPublic());
+        coins.signTx(pk_scrooge.getPrivate(), 0);
+        UTXOPool feePool = new UTXOPool();
+        for (int i = 0; i < 3; i++)
+            feePool.addUTXO(new UTXO(coins.getHash(), i), coins.getOutput(i));
+        Tx txA = new Tx();
+        txA.addInput(coins.getHash(), 0);
+        txA.addOutput(190, pk_alice.getPublic());
+        txA.signTx(pk_scrooge.getPrivate(), 0);
+        Tx txB = new Tx();
+        txB.addInput(txA.getHash(), 0);
+        txB.addOutput(90, pk_alice.getPublic());
+        txB.signTx(pk_alice.getPrivate(), 0);
+        Tx txD = new Tx();
+        txD.addInput(txB.getHash(), 0);
+        txD.addInput(coins.getHash(), 1);
+        txD.addOutput(289, pk_alice.getPublic());
+        txD.signTx(pk_alice.getPrivate(), 0);
+        txD.signTx(pk_scrooge.getPrivate(), 1);
+        Tx txX = new Tx();
+        txX.addInput(coins.getHash(), 1);
+        txX.addInput(coins.getHash(), 2);
+        txX.addOutput(395, pk_alice.getPublic());
+        txX.signTx(pk_scrooge.getPrivate(), 0);
+        txX.signTx(pk_scrooge.getPrivate(), 1);
+        Transaction[] picked = new MaxFeeTxHandler(feePool).handleTxs(new Transaction[]{txD, txX, txB, txA});
+        double fees = 0;
+        for (Transaction t : picked)
+            fees += t == txA ? 10 : t == txB ? 100 : t == txD ? 1 : 5;
+        System.out.println("maxFeeTxHandler.handleTxs(package) fees: " + fees + " (expected 115.0)");
     }
 
 
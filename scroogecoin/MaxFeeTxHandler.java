@@ -1,7 +1,12 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.HashSet;
+import java.util.HashMap;
 import java.util.Arrays;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
 
 public class MaxFeeTxHandler {
 
@@ -129,33 +134,324 @@ public class MaxFeeTxHandler {
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
-     * updating the current UTXO pool as appropriate.
+     * updating the current UTXO pool as appropriate. The accepted set aims at the highest total
+     * fee: transactions are taken greedily by the fee rate of their package, i.e. the transaction
+     * together with its ancestors that are not accepted yet, and every accepted package rules out
+     * the transactions spending the same outputs along with their descendants. Each transaction
+     * keeps the fee and size of its package, which shrink as its ancestors are accepted.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         // IMPLEMENT THIS
+        ArrayList<Node> nodes = buildGraph(possibleTxs);
+        // Spent output -> epoch transactions spending it
+        HashMap<UTXO, ArrayList<Node>> spenders = new HashMap<UTXO, ArrayList<Node>>();
+        for (Node node : nodes) {
+            for (Transaction.Input in : node.tx.getInputs()) {
+                UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+                ArrayList<Node> list = spenders.get(utxo);
+                if (list == null) {
+                    list = new ArrayList<Node>();
+                    spenders.put(utxo, list);
+                }
+                list.add(node);
+            }
+        }
+
+        // Nodes are in topological order, so parents are checked first
+        PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+        for (Node node : nodes) {
+            if (node.state != CANDIDATE)
+                continue;
+            if (checkNode(node) == false) {
+                exclude(node);
+                continue;
+            }
+            if (node.parents.size() <= 1 && spendsContested(node, spenders) == false) {
+                // The package is the parent's plus the node, and the parent's has no double spend
+                node.packageFee = node.fee;
+                node.packageSize = node.size;
+                for (Node parent : node.parents) {
+                    node.packageFee += parent.packageFee;
+                    node.packageSize += parent.packageSize;
+                }
+            } else {
+                ArrayList<Node> pkg = getPackage(node);
+                if (spendsTwice(pkg)) {
+                    // Needs two ancestors that spend the same output, accepting ancestors cannot fix that
+                    exclude(node);
+                    continue;
+                }
+                for (Node p : pkg) {
+                    node.packageFee += p.fee;
+                    node.packageSize += p.size;
+                }
+            }
+            queue.add(new Candidate(node));
+        }
+
         ArrayList<Transaction> validTx = new ArrayList<Transaction>();
-        // Keep track of unresolved txs
-        HashSet<Transaction> txs = new HashSet<Transaction>();
-        for (int i = 0; i < possibleTxs.length; i++) {
-            txs.add(possibleTxs[i]);
-        }
-        int tmpSize = txs.size();
-        int newSize = tmpSize;
-        do {
-            tmpSize = newSize;
-            // Iterate unresolved txs
-            for (Iterator<Transaction> i = txs.iterator(); i.hasNext();) {
-                Transaction tx = i.next();
-                if (isValidTx(tx)) {
-                    validTx.add(tx);
-                    handleValidTx(tx);
-                    i.remove();
+        while (!queue.isEmpty()) {
+            Candidate c = queue.poll();
+            Node node = c.node;
+            if (node.state != CANDIDATE || c.version != node.version)
+                continue;
+            ArrayList<Node> pkg = getPackage(node);
+            Collections.sort(pkg, new Comparator<Node>() {
+                public int compare(Node n1, Node n2) {
+                    return Integer.compare(n1.rank, n2.rank);
                 }
+            });
+            // Collected while the package is still made of candidates, so that a descendant reached
+            // only through another package member is found from every accepted ancestor
+            ArrayList<ArrayList<Node>> descendants = new ArrayList<ArrayList<Node>>(pkg.size());
+            for (Node p : pkg)
+                descendants.add(getDescendants(p));
+            for (Node p : pkg) {
+                p.state = SELECTED;
+                validTx.add(p.tx);
+                handleValidTx(p.tx);
             }
-            newSize = txs.size();
-        } while (tmpSize != newSize);
-        
+            for (Node p : pkg) {
+                for (Transaction.Input in : p.tx.getInputs()) {
+                    for (Node other : spenders.get(new UTXO(in.prevTxHash, in.outputIndex))) {
+                        if (other != p)
+                            exclude(other);
+                    }
+                }
+            }
+            // The remaining descendants no longer carry the accepted transactions in their packages
+            HashSet<Node> updated = new HashSet<Node>();
+            for (int i = 0; i < pkg.size(); i++) {
+                Node p = pkg.get(i);
+                for (Node descendant : descendants.get(i)) {
+                    // Package members are accepted now, conflicting ones are ruled out
+                    if (descendant.state != CANDIDATE)
+                        continue;
+                    descendant.packageFee -= p.fee;
+                    descendant.packageSize -= p.size;
+                    updated.add(descendant);
+                }
+            }
+            for (Node descendant : updated) {
+                descendant.version++;
+                queue.add(new Candidate(descendant));
+            }
+        }
         return validTx.toArray(new Transaction[validTx.size()]);
     }
 
+    private static final int CANDIDATE = 0;
+    private static final int SELECTED = 1;
+    private static final int EXCLUDED = 2;
+
+    /** A proposed transaction and its place in the dependency graph of the epoch */
+    private static class Node {
+        Transaction tx;
+        // Position in topological order
+        int rank;
+        double fee;
+        int size;
+        // Fee and size of the node with its ancestors that are not accepted yet
+        double packageFee;
+        int packageSize;
+        // Epoch transactions whose outputs this one spends, and the ones spending its outputs
+        ArrayList<Node> parents = new ArrayList<Node>();
+        ArrayList<Node> children = new ArrayList<Node>();
+        int state = CANDIDATE;
+        // Bumped when an ancestor is accepted, which outdates queued scores
+        int version;
+
+        Node(Transaction tx) {
+            this.tx = tx;
+        }
+    }
+
+    /** A queued package fee rate of a node */
+    private static class Candidate implements Comparable<Candidate> {
+        Node node;
+        double score;
+        int version;
+
+        Candidate(Node node) {
+            this.node = node;
+            this.score = node.packageFee / node.packageSize;
+            this.version = node.version;
+        }
+
+        public int compareTo(Candidate other) {
+            if (score != other.score)
+                return score > other.score ? -1 : 1;
+            return Integer.compare(node.rank, other.node.rank);
+        }
+    }
+
+    /**
+     * @return a node for every distinct transaction in topological order, with the transactions
+     *         that spend each other linked. Transactions in cycles are left out.
+     */
+    private ArrayList<Node> buildGraph(Transaction[] possibleTxs) {
+        // ByteBuffer compares the wrapped hash bytes
+        HashMap<ByteBuffer, Node> byHash = new HashMap<ByteBuffer, Node>();
+        ArrayList<Node> all = new ArrayList<Node>();
+        for (Transaction tx : possibleTxs) {
+            if (tx == null || tx.getHash() == null)
+                continue;
+            ByteBuffer hash = ByteBuffer.wrap(tx.getHash());
+            if (!byHash.containsKey(hash)) {
+                Node node = new Node(tx);
+                byHash.put(hash, node);
+                all.add(node);
+            }
+        }
+        HashMap<Node, Integer> pending = new HashMap<Node, Integer>();
+        for (Node node : all) {
+            for (Transaction.Input in : node.tx.getInputs()) {
+                if (in.prevTxHash == null || utxoPool.contains(new UTXO(in.prevTxHash, in.outputIndex)))
+                    continue;
+                Node parent = byHash.get(ByteBuffer.wrap(in.prevTxHash));
+                if (parent != null && parent != node && !node.parents.contains(parent)) {
+                    node.parents.add(parent);
+                    parent.children.add(node);
+                }
+            }
+            pending.put(node, node.parents.size());
+        }
+        ArrayList<Node> ordered = new ArrayList<Node>(all.size());
+        for (Node node : all) {
+            if (node.parents.isEmpty())
+                ordered.add(node);
+        }
+        for (int i = 0; i < ordered.size(); i++) {
+            Node node = ordered.get(i);
+            node.rank = i;
+            for (Node child : node.children) {
+                int left = pending.get(child) - 1;
+                pending.put(child, left);
+                if (left == 0)
+                    ordered.add(child);
+            }
+        }
+        for (Node node : all) {
+            if (pending.get(node) > 0)
+                node.state = EXCLUDED;
+        }
+        return ordered;
+    }
+
+    /**
+     * Check everything about {@code node} that does not depend on which other transactions are
+     * accepted, as {@link #isValidTx(Transaction)} does for outputs spent from the pool, and set
+     * its fee and size.
+     */
+    private boolean checkNode(Node node) {
+        Transaction tx = node.tx;
+        HashSet<UTXO> allUTXO = new HashSet<UTXO>();
+        double inputSum = 0.0;
+        double outputSum = 0.0;
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input in = tx.getInput(i);
+            if (in.prevTxHash == null)
+                return false;
+            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+            if (allUTXO.add(utxo) == false)
+                return false;
+            Transaction.Output prevOutput = utxoPool.getTxOutput(utxo);
+            if (prevOutput == null) {
+                for (Node parent : node.parents) {
+                    if (Arrays.equals(parent.tx.getHash(), in.prevTxHash)
+                            && in.outputIndex >= 0 && in.outputIndex < parent.tx.numOutputs())
+                        prevOutput = parent.tx.getOutput(in.outputIndex);
+                }
+            }
+            if (prevOutput == null)
+                return false;
+            if (Crypto.verifySignature(prevOutput.address, tx.getRawDataToSign(i), in.signature) == false)
+                return false;
+            inputSum += prevOutput.value;
+        }
+        for (Transaction.Output output : tx.getOutputs()) {
+            if (output.value < 0)
+                return false;
+            outputSum += output.value;
+        }
+        if (inputSum < outputSum)
+            return false;
+        node.fee = inputSum - outputSum;
+        node.size = Math.max(1, tx.getRawTx().length);
+        return true;
+    }
+
+    /** @return {@code node} and its ancestors that are not accepted yet */
+    private ArrayList<Node> getPackage(Node node) {
+        ArrayList<Node> pkg = new ArrayList<Node>();
+        HashSet<Node> seen = new HashSet<Node>();
+        ArrayDeque<Node> stack = new ArrayDeque<Node>();
+        stack.push(node);
+        seen.add(node);
+        while (!stack.isEmpty()) {
+            Node next = stack.pop();
+            pkg.add(next);
+            for (Node parent : next.parents) {
+                if (parent.state == CANDIDATE && seen.add(parent))
+                    stack.push(parent);
+            }
+        }
+        return pkg;
+    }
+
+    /** @return the transactions depending on {@code node} that are still candidates */
+    private ArrayList<Node> getDescendants(Node node) {
+        ArrayList<Node> descendants = new ArrayList<Node>();
+        HashSet<Node> seen = new HashSet<Node>();
+        ArrayDeque<Node> stack = new ArrayDeque<Node>();
+        stack.push(node);
+        while (!stack.isEmpty()) {
+            for (Node child : stack.pop().children) {
+                if (child.state == CANDIDATE && seen.add(child)) {
+                    descendants.add(child);
+                    stack.push(child);
+                }
+            }
+        }
+        return descendants;
+    }
+
+    /** @return true if another epoch transaction spends an output {@code node} spends */
+    private boolean spendsContested(Node node, HashMap<UTXO, ArrayList<Node>> spenders) {
+        for (Transaction.Input in : node.tx.getInputs()) {
+            if (spenders.get(new UTXO(in.prevTxHash, in.outputIndex)).size() > 1)
+                return true;
+        }
+        return false;
+    }
+
+    /** @return true if two transactions of {@code pkg} spend the same output */
+    private boolean spendsTwice(ArrayList<Node> pkg) {
+        HashSet<UTXO> spent = new HashSet<UTXO>();
+        for (Node p : pkg) {
+            for (Transaction.Input in : p.tx.getInputs()) {
+                if (spent.add(new UTXO(in.prevTxHash, in.outputIndex)) == false)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /** Rule out {@code node} and every transaction depending on it */
+    private void exclude(Node node) {
+        if (node.state != CANDIDATE)
+            return;
+        ArrayDeque<Node> stack = new ArrayDeque<Node>();
+        node.state = EXCLUDED;
+        stack.push(node);
+        while (!stack.isEmpty()) {
+            for (Node child : stack.pop().children) {
+                if (child.state == CANDIDATE) {
+                    child.state = EXCLUDED;
+                    stack.push(child);
+                }
+            }
+        }
+    }
+
 }